@@ -0,0 +1,253 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.time.LocalDate;
+import java.util.List;
+
+/* Shapes the downloads of a batch with a token bucket, capped per the
+   network we're on, and counts the bytes downloaded on metered networks
+   against a daily budget. */
+final class Bandwidth {
+    private final static String TAG = "Podcasts.Bandwidth";
+
+    // Caps on the download rate (bytes per second), 0 for none
+    static long mUnmeteredBytesPerSec = 0;
+    static long mMeteredBytesPerSec = 0;
+    // While QtEdPod is connected, so downloads don't starve its TCP channel
+    static long mClientBytesPerSec = 0;
+
+    // Bytes we may download each day on metered networks without being
+    // forced, 0 for none
+    static long mMeteredDailyBytes = 0;
+
+    private final static long RECHECK_MS = 2000;    // How often to look at the network again
+    private final static long BURST_MS = 250;       // The bucket holds this long's worth of bytes
+    private final static long MIN_CHUNK_BYTES = 8 * 1024;
+    private final static long METER_MS = 1000;
+
+    @NonNull private final Context context;
+    private final boolean force;
+    private boolean metered;
+    private long capBytesPerSec;            // 0 for none
+    private long checkedMs;
+    private double tokens;                  // Negative when we owe
+    private long refilledMs;
+    private long meterStartMs;
+    private long meterBytes;
+    private volatile long bytesPerSec;      // Measured over the last METER_MS
+    private volatile boolean overBudget;
+    private long granted;                   // Given out by chunk, not yet settled
+
+    Bandwidth(@NonNull Context context, boolean force) {
+        this.context = context;
+        this.force = force;
+        this.refilledMs = this.meterStartMs = SystemClock.elapsedRealtime();
+        this.checkedMs = this.refilledMs - RECHECK_MS;     // Check on first use
+    }
+
+    // The network may change under us
+    private void recheck(long nowMs) {
+        if (nowMs - checkedMs < RECHECK_MS)
+            return;
+        checkedMs = nowMs;
+        boolean m = !Downloader.isWifi(context);
+        long cap = m ? mMeteredBytesPerSec : mUnmeteredBytesPerSec;
+        if (TcpService.numClients() != 0 && mClientBytesPerSec > 0
+                && (cap == 0 || mClientBytesPerSec < cap))
+            cap = mClientBytesPerSec;
+        if (m != metered || cap != capBytesPerSec)
+            Log.i(TAG, (m ? "Metered" : "Unmetered") + ", cap " + cap + " bytes/sec");
+        if (metered && !m)
+            saveUsage(context);     // No more metered usage for now
+        metered = m;
+        capBytesPerSec = cap;
+    }
+
+    /* How much to transfer at a time, so no one transfer overdraws the bucket
+       by much.  On a metered network, unless we were forced, it's no more than
+       what's left of today's budget after the other transfers under way, and
+       0 once that's used up.  Pass what this returns to `settle` once the
+       transfer is done, even if it failed. */
+    synchronized long chunk(long maxBytes) {
+        recheck(SystemClock.elapsedRealtime());
+        long n = maxBytes;
+        if (capBytesPerSec != 0)
+            n = Math.max(MIN_CHUNK_BYTES, Math.min(maxBytes, capBytesPerSec * BURST_MS / 1000));
+        if (metered && !force) {
+            long left = meteredBytesLeft(context) - granted;
+            if (left <= 0) {
+                usedUp();
+                return 0;
+            }
+            n = Math.min(n, left);
+        }
+        granted += n;
+        return n;
+    }
+
+    // `bytes` of the `chunk` bytes we were granted were downloaded
+    synchronized void settle(long chunk, long bytes) {
+        granted -= chunk;
+        if (metered && addMeteredUsage(context, bytes) == 0 && !force)
+            usedUp();
+    }
+
+    // Call with the lock held
+    private void usedUp() {
+        if (overBudget)
+            return;
+        Log.i(TAG, "Used up today's metered budget of " + mMeteredDailyBytes);
+        overBudget = true;
+        saveUsage(context);
+    }
+
+    /* We just downloaded `bytes` more, and settled them.  Wait as long as it
+       takes to keep to the cap.  Return false if that was the last of today's
+       metered budget and we weren't forced. */
+    boolean transferred(long bytes) throws InterruptedException {
+        long waitMs = 0;
+        synchronized (this) {
+            long nowMs = SystemClock.elapsedRealtime();
+            recheck(nowMs);
+
+            meterBytes += bytes;
+            if (nowMs - meterStartMs >= METER_MS) {
+                bytesPerSec = meterBytes * 1000 / (nowMs - meterStartMs);
+                meterBytes = 0;
+                meterStartMs = nowMs;
+            }
+
+            if (capBytesPerSec == 0)
+                tokens = 0;
+            else {
+                double burst = capBytesPerSec * BURST_MS / 1000.0;
+                tokens = Math.min(burst, tokens + (nowMs - refilledMs) * capBytesPerSec / 1000.0);
+                tokens -= bytes;
+                if (tokens < 0)
+                    waitMs = (long) Math.ceil(-tokens * 1000 / capBytesPerSec);
+            }
+            refilledMs = nowMs;
+        }
+        if (waitMs > 0)
+            Thread.sleep(waitMs);
+        return !overBudget;
+    }
+
+    boolean overBudget() {
+        return overBudget;
+    }
+
+    // Live download rate for the status displays
+    long bytesPerSec() {
+        return bytesPerSec;
+    }
+
+    // ---- daily metered usage ----
+
+    /* Bytes downloaded on metered networks today.  Saved in METERED_USAGE as
+       "day<TAB>bytes" so it lasts from one batch to the next. */
+    private final static String METERED_USAGE = "_metered.txt";
+    private static final Object usageLock = new Object();
+    @Nullable private static String usageDay;       // Read when first needed
+    private static long usageBytes;
+    private static boolean usageDirty;
+
+    // Call with usageLock held
+    private static void loadUsage(@NonNull Context context) {
+        String today = LocalDate.now().toString();
+        if (today.equals(usageDay))
+            return;
+        if (usageDay == null) {
+            File file = new File(Utilities.getFolder(context), METERED_USAGE);
+            try {
+                List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+                String[] f = lines.isEmpty() ? new String[0] : lines.get(0).split("\t");
+                if (f.length == 2 && f[0].equals(today))
+                    usageBytes = Long.parseLong(f[1]);
+            }
+            catch (NoSuchFileException ex) {
+                // Nothing used yet
+            }
+            catch (IOException | NumberFormatException ex) {
+                Note.e(TAG, "Reading " + file, ex);
+            }
+        }
+        else {
+            usageBytes = 0;     // A new day
+            usageDirty = true;
+        }
+        usageDay = today;
+    }
+
+    // Returns the bytes left in today's budget
+    private static long addMeteredUsage(@NonNull Context context, long bytes) {
+        synchronized (usageLock) {
+            loadUsage(context);
+            usageBytes += bytes;
+            usageDirty = true;
+            return Math.max(0, mMeteredDailyBytes - usageBytes);
+        }
+    }
+
+    // The bytes we may still download on metered networks today without being forced
+    static long meteredBytesLeft(@NonNull Context context) {
+        synchronized (usageLock) {
+            loadUsage(context);
+            return Math.max(0, mMeteredDailyBytes - usageBytes);
+        }
+    }
+
+    /* Called at the end of each batch and when a batch stops counting metered
+       usage, not for each transfer */
+    static void saveUsage(@NonNull Context context) {
+        synchronized (usageLock) {
+            if (!usageDirty)
+                return;
+            usageDirty = false;
+            String line = usageDay + "\t" + usageBytes + "\n";
+            Utilities.writeFile(context, METERED_USAGE, line.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/* The metadata of every track in one file, so a cold start reads one file
+   instead of opening and parsing a .tag file per track.
+
+   The .tag files are still the source of truth.  Each entry records the
+   last-modified time of the .tag file it was imported from, and findFiles
+   re-imports any track whose .tag file has changed since.  If the catalog is
+   missing, from another version, or fails its checksum, readState imports
+   everything from the .tag files and the catalog is rewritten.
+
+   Layout: MAGIC, VERSION, count, `count` entries, then the CRC32 of all the
+   preceding bytes.  See writeEntry for the layout of an entry. */
+final class Catalog {
+    private final static String TAG = "Podcasts.Catalog";
+
+    private final static String FILE_NAME = "_catalog.bin";
+    private final static int MAGIC = 0x50434154;    // "PCAT"
+    private final static int VERSION = 2;
+    private final static int CRC_BYTES = 8;
+
+    private Catalog() {
+    }
+
+    static boolean exists(@NonNull Context context) {
+        return new File(Utilities.getFolder(context), FILE_NAME).exists();
+    }
+
+    // The tracks in the catalog, or null if there's no usable catalog
+    @Nullable
+    static List<Track> read(@NonNull Context context) {
+        File file = new File(Utilities.getFolder(context), FILE_NAME);
+        byte[] b;
+        try {
+            b = Files.readAllBytes(file.toPath());
+        }
+        catch (NoSuchFileException ex) {
+            Log.i(TAG, "No catalog");
+            return null;
+        }
+        catch (IOException ex) {
+            Note.e(TAG, "I/O reading " + file, ex);
+            return null;
+        }
+
+        int len = b.length - CRC_BYTES;
+        if (len < 12) {
+            Note.w(TAG, "Catalog is truncated: " + b.length + " bytes");
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, len);
+        if (crc.getValue() != ByteBuffer.wrap(b, len, CRC_BYTES).getLong()) {
+            Note.w(TAG, "Catalog checksum mismatch");
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, 0, len))) {
+            if (in.readInt() != MAGIC) {
+                Note.w(TAG, "Not a catalog: " + file);
+                return null;
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                Log.i(TAG, "Catalog version " + version + ", want " + VERSION);
+                return null;
+            }
+            int count = in.readInt();
+            List<Track> tracks = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i)
+                tracks.add(readEntry(in));
+            Log.i(TAG, "Read " + count + " tracks from catalog");
+            return tracks;
+        }
+        catch (IOException ex) {
+            Note.e(TAG, "Bad catalog", ex);
+            return null;
+        }
+    }
+
+    static void write(@NonNull Context context, @NonNull List<Track> tracks) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * tracks.size() + 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(tracks.size());
+            for (Track t : tracks)
+                writeEntry(out, t);
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+        }
+        catch (IOException ex) {
+            // e.g., a string too long for writeUTF.  Next time we'll import from the .tag files
+            Note.e(TAG, "Could not encode catalog", ex);
+            Track.deleteFile(new File(Utilities.getFolder(context), FILE_NAME));
+            return;
+        }
+        Utilities.writeFile(context, FILE_NAME, bytes.toByteArray());
+    }
+
+    private static void writeEntry(@NonNull DataOutputStream out, @NonNull Track t) throws IOException {
+        out.writeUTF(t.ident);
+        out.writeUTF(t.priority);
+        out.writeUTF(t.title);
+        out.writeUTF(t.artist);
+        out.writeInt(t.durMs());
+        out.writeLong(t.size());
+        out.writeLong(t.when());
+        out.writeLong(t.tagModified);
+        writeNullableUTF(out, t.emoji);
+        writeNullableUTF(out, t.feed_url);
+        writeNullableUTF(out, t.track_url);
+        writeNullableUTF(out, t.sha256);
+        if (t.quiet == null)
+            out.writeInt(-1);
+        else {
+            out.writeInt(t.quiet.length);
+            for (int q : t.quiet)
+                out.writeInt(q);
+        }
+    }
+
+    @NonNull
+    private static Track readEntry(@NonNull DataInputStream in) throws IOException {
+        Track t = new Track(in.readUTF());
+        t.priority = in.readUTF();
+        t.title = in.readUTF();
+        t.artist = in.readUTF();
+        t.setDurMs(in.readInt());
+        t.setSize(in.readLong());
+        t.setWhen(in.readLong());
+        t.tagModified = in.readLong();
+        t.emoji = readNullableUTF(in);
+        t.feed_url = readNullableUTF(in);
+        t.track_url = readNullableUTF(in);
+        t.sha256 = readNullableUTF(in);
+        int n = in.readInt();
+        if (n >= 0) {
+            t.quiet = new int[n];
+            for (int i = 0; i < n; ++i)
+                t.quiet[i] = in.readInt();
+        }
+        return t;
+    }
+
+    private static void writeNullableUTF(@NonNull DataOutputStream out, @Nullable String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    @Nullable
+    private static String readNullableUTF(@NonNull DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
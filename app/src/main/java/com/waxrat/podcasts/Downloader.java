@@ -31,19 +31,42 @@
 
 package com.waxrat.podcasts;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -52,6 +75,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -88,10 +112,11 @@ public final class Downloader extends Worker {
     static final String STATUS_STATUS_EXTRA = "status";
     static final String TRACK_NUM_STATUS_EXTRA = "track-num";
     static final String NUM_TRACKS_STATUS_EXTRA = "num-tracks";
+    static final String BYTES_PER_SEC_STATUS_EXTRA = "bytes-per-sec";
 
     private static void broadcastStatus(@NonNull Context context,
             @NonNull String status, int trackNum, int numTracks,
-            @Nullable String ident) {
+            @Nullable String ident, long bytesPerSec) {
         Intent i = new Intent(ACTION_DOWNLOAD_STATUS);
         i.putExtra(STATUS_STATUS_EXTRA, status);
         // Track #trackNum of numTracks (e.g., #1 of 4)
@@ -99,11 +124,13 @@ public final class Downloader extends Worker {
         i.putExtra(NUM_TRACKS_STATUS_EXTRA, numTracks);
         if (ident != null)
             i.putExtra(IDENT_EXTRA, ident);
+        // Live download rate, or -1
+        i.putExtra(BYTES_PER_SEC_STATUS_EXTRA, bytesPerSec);
         context.sendBroadcast(i);
     }
 
     private static void broadcastStatus(@NonNull Context context, @NonNull String status) {
-        broadcastStatus(context, status, -1, -1, null);
+        broadcastStatus(context, status, -1, -1, null, -1);
     }
 
     public Downloader(@NonNull Context context, @NonNull WorkerParameters params) {
@@ -256,7 +283,6 @@ public final class Downloader extends Worker {
     private static final TagsComparator TAGS_COMPARATOR = new TagsComparator();
 
     private void downloadTags(@NonNull Context context) {
-        Tags[] downloads;
         try {
             broadcastStatus(context, POLLING_STATUS);
 
@@ -264,7 +290,7 @@ public final class Downloader extends Worker {
             notification(context, NOTIFY_DOWNLOADING, "Checking...",
                     android.R.drawable.stat_sys_download);
 
-            downloads = tagsToDownload(context);
+            ingestTags(context);
         }
         catch (Exception e) {
             Note.e(TAG, "checkDownloads - exception", e);
@@ -276,15 +302,24 @@ public final class Downloader extends Worker {
             broadcastStatus(context, IDLE_STATUS);
             mNotificationManager.cancel(NOTIFY_DOWNLOADING);
         }
+    }
 
-        if (downloads == null)
-            return;
-
-        Arrays.sort(downloads, TAGS_COMPARATOR);
+    // Install what the poll has delivered so far at least this often
+    private final static long INGEST_PUBLISH_MS = 250;
 
-        for (Tags download : downloads)
-            download.writeFile(context, false);
+    /* Install the .tag records in `staged`, which is then empty.  Their
+       files are written all together, so a failure leaves none of them.
+       Returns false if they couldn't be written. */
+    private static boolean installTags(@NonNull Context context, @NonNull List<Tags> staged) {
+        if (staged.isEmpty())
+            return true;
+        staged.sort(TAGS_COMPARATOR);
+        boolean ok = Tags.writeNewFiles(context, staged);
+        if (!ok)
+            Note.e(TAG, "Could not install " + staged.size() + " tracks");
+        staged.clear();
         Tracks.restore(context, true);
+        return ok;
     }
 
     private void downloadAudios(@NonNull Context context,
@@ -309,7 +344,8 @@ public final class Downloader extends Worker {
                 else if (track.downloaded) {
                     Log.i(TAG, "Track is already downloaded: " + track);
                 }
-                else if (!downloadAudio(context, track, thenStart, numDownloaded + 1, numToDownload)) {
+                else if (!downloadAudio(context, track, thenStart,
+                                        new Batch(context, Collections.singletonList(track), force))) {
                     trouble = true;
                 }
                 else {
@@ -317,27 +353,19 @@ public final class Downloader extends Worker {
                 }
             }
             else {
-                Track[] downloadable = Tracks.downloadable();
-                if (downloadable == null)
+                List<Tracks.Due> schedule = Tracks.downloadSchedule(MainActivity.mAfterTrack);
+                if (schedule.isEmpty())
                     Log.i(TAG, "No tracks to download");
                 else {
-                    numToDownload = downloadable.length;
-                    for (Track track : downloadable) {
-                        if (maxToDownload != -1 && numDownloaded >= maxToDownload) {
-                            Log.i(TAG, "Reached download limit");
-                            break;
-                        }
-                        if (!force && downloadDiscouraged(context)) {
-                            trouble = true; // Lost Wi-Fi while we were downloading
-                            break;
-                        }
-                        if (!downloadAudio(context, track, thenStart, numDownloaded + 1, numToDownload)) {
-                            trouble = true;
-                            break;
-                        }
-                        thenStart = false;
-                        ++numDownloaded;
+                    numToDownload = schedule.size();
+                    int limit = Integer.MAX_VALUE;
+                    if (maxToDownload != -1 && maxToDownload < numToDownload) {
+                        Log.i(TAG, "Download limit " + maxToDownload);
+                        limit = maxToDownload;
                     }
+                    numDownloaded = downloadInParallel(context, schedule, limit, force, thenStart);
+                    if (numDownloaded < Math.min(limit, numToDownload))
+                        trouble = true;
                 }
             }
 
@@ -358,7 +386,276 @@ public final class Downloader extends Worker {
                     android.R.drawable.stat_notify_error);
         }
         finally {
+            broadcastStatus(context, IDLE_STATUS);
             mNotificationManager.cancel(NOTIFY_DOWNLOADING);
+            Bandwidth.saveUsage(context);
+        }
+        sendRemovals(context);
+    }
+
+    // The most bytes to copy from the server per transferFrom, so we see progress
+    final static long TRANSFER_BYTES = 256 * 1024;
+
+    /** With thenStart, start playing a track once we have this many bytes of
+        it, rather than after all of them.  0 to wait for all of them */
+    static long mStreamingPrefixBytes = 512 * 1024;
+
+    /** The most downloads downloadInParallel runs at once */
+    static int mMaxParallelDownloads = 3;
+
+    // How often to measure the download rate and adapt to it
+    private final static long RATE_SAMPLE_MS = 2000;
+
+    /* Our latest measure of how fast one download goes (bytes per
+       millisecond), or 0 if we haven't measured yet */
+    private static double mBytesPerMs = 0;
+
+    /* Download up to `limit` of the tracks in Tracks.downloadSchedule,
+       starting them in that order, soonest to be played first.  Runs between
+       1 and mMaxParallelDownloads at once: every RATE_SAMPLE_MS, if the total
+       rate went up then run one more, and if it went down then run one fewer.
+
+       The schedule is checked again every RATE_SAMPLE_MS, since the
+       selected track, the priorities or the tracks themselves may change
+       while we download.  See `preempt`.  Stops starting downloads after one
+       fails.  Returns how many were downloaded. */
+    private int downloadInParallel(@NonNull Context context, @NonNull List<Tracks.Due> schedule,
+                                   int limit, boolean force, boolean thenStart) {
+        List<Track> first = new ArrayList<>();
+        for (Tracks.Due d : schedule.subList(0, Math.min(limit, schedule.size())))
+            first.add(d.track);
+        Batch batch = new Batch(context, first, force);
+        ExecutorService pool = Executors.newFixedThreadPool(mMaxParallelDownloads);
+        CompletionService<Boolean> finished = new ExecutorCompletionService<>(pool);
+        Map<Future<Boolean>, Track> running = new HashMap<>();
+        Set<Track> done = new HashSet<>();      // Downloaded, or failed
+        int parallel = 1;
+        int numDownloaded = 0;
+        boolean trouble = false;
+        long lastBytes = 0;
+        long lastMs = SystemClock.elapsedRealtime();
+        double lastRate = 0;
+        try {
+            for (;;) {
+                if (!trouble && running.size() >= parallel)
+                    preempt(schedule, running.values(), done, batch);
+                while (!trouble && running.size() < parallel && numDownloaded + running.size() < limit) {
+                    Track track = nextToDownload(schedule, running.values(), done);
+                    if (track == null)
+                        break;
+                    if (!force && downloadDiscouraged(context)) {
+                        trouble = true; // Lost Wi-Fi, or used up the metered budget
+                        break;
+                    }
+                    boolean start = thenStart;
+                    thenStart = false;
+                    running.put(finished.submit(() -> downloadAudio(context, track, start, batch)), track);
+                }
+                if (running.isEmpty())
+                    break;
+
+                Future<Boolean> f = finished.poll(RATE_SAMPLE_MS, TimeUnit.MILLISECONDS);
+                if (f != null) {
+                    Track track = running.remove(f);
+                    boolean ok;
+                    try {
+                        ok = f.get();
+                    }
+                    catch (ExecutionException ex) {
+                        Note.e(TAG, "downloadInParallel", ex);
+                        ok = false;
+                    }
+                    if (ok) {
+                        ++numDownloaded;
+                        done.add(track);
+                        batch.preempted.remove(track.ident);
+                    }
+                    else if (batch.preempted.remove(track.ident))
+                        Log.i(TAG, "Preempted " + track);    // Resumes when its turn comes again
+                    else {
+                        done.add(track);
+                        trouble = true;
+                    }
+                }
+
+                long nowMs = SystemClock.elapsedRealtime();
+                if (nowMs - lastMs < RATE_SAMPLE_MS)
+                    continue;
+                long bytes = batch.transferred();
+                double rate = (bytes - lastBytes) / (double) Math.max(1, nowMs - lastMs);
+                if (rate > 0 && !running.isEmpty())
+                    mBytesPerMs = rate / running.size();
+                if (rate > lastRate * 1.1 && parallel < mMaxParallelDownloads)
+                    ++parallel;
+                else if (rate < lastRate * 0.9 && parallel > 1)
+                    --parallel;
+                Log.i(TAG, "Download rate " + (int) (rate * 1000 / 1024) + " KB/s, " + parallel + " at once");
+                lastRate = rate;
+                lastBytes = bytes;
+                lastMs = nowMs;
+                schedule = Tracks.downloadSchedule(MainActivity.mAfterTrack);
+            }
+        }
+        catch (InterruptedException ex) {
+            Note.e(TAG, "downloadInParallel interrupted", ex);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        return numDownloaded;
+    }
+
+    // The first track in `schedule` that we haven't downloaded and aren't downloading
+    @Nullable
+    private static Track nextToDownload(@NonNull List<Tracks.Due> schedule,
+                                        @NonNull Collection<Track> running,
+                                        @NonNull Set<Track> done) {
+        for (Tracks.Due d : schedule)
+            if (!d.track.downloaded && !done.contains(d.track) && !running.contains(d.track))
+                return d.track;
+        return null;
+    }
+
+    /* If waiting for a download to finish would make us late downloading the
+       next track in `schedule`, stop the running download that we'll play
+       last to make room.  Its .part file stays, so it resumes when its turn
+       comes again. */
+    private static void preempt(@NonNull List<Tracks.Due> schedule, @NonNull Collection<Track> running,
+                                @NonNull Set<Track> done, @NonNull Batch batch) {
+        if (mBytesPerMs <= 0)
+            return;     // Can't tell yet
+        Tracks.Due next = null;
+        Tracks.Due last = null;     // The running download we'll play last
+        for (Tracks.Due d : schedule) {
+            if (running.contains(d.track)) {
+                if (next != null)
+                    last = d;
+            }
+            else if (next == null && !d.track.downloaded && !done.contains(d.track))
+                next = d;
+        }
+        if (next == null)
+            return;
+        if (last == null) {
+            // The running downloads are all due before `next`, or aren't in the schedule any more
+            for (Track t : running) {
+                if (!scheduled(schedule, t)) {
+                    last = new Tracks.Due(t, Long.MAX_VALUE);
+                    break;
+                }
+            }
+            if (last == null)
+                return;
+        }
+        if (batch.preempted.contains(last.track.ident))
+            return;     // Already stopping
+
+        // When the first slot frees up, and how long `next` takes after that
+        long slotMs = Long.MAX_VALUE;
+        for (Track t : running)
+            slotMs = Math.min(slotMs, (long) ((t.size() - batch.downloadedOf(t)) / mBytesPerMs));
+        long needMs = (long) (next.track.size() / mBytesPerMs);
+        if (slotMs + needMs <= next.playInMs)
+            return;     // Waiting is fine
+
+        Log.i(TAG, "Preempting " + last.track + " for " + next.track + ", which plays in "
+              + next.playInMs + " ms and takes " + needMs + " ms after waiting " + slotMs);
+        batch.preempted.add(last.track.ident);
+    }
+
+    private static boolean scheduled(@NonNull List<Tracks.Due> schedule, @NonNull Track track) {
+        for (Tracks.Due d : schedule)
+            if (d.track == track)
+                return true;
+        return false;
+    }
+
+    private final static long PROGRESS_INTERVAL_MS = 500;
+
+    /* The progress of a batch of downloads, shared by the threads doing them */
+    private final class Batch {
+        @NonNull private final Context context;
+        private final int numTracks;
+        private final long totalBytes;
+        @NonNull private final NotificationCompat.Builder nb;
+        @NonNull final Bandwidth bandwidth;
+        private int numStarted = 0;
+        @Nullable private String lastStarted;
+        // Which of the batch each download is, by ident.  One that was preempted keeps its number.
+        private final Map<String, Integer> numbers = new HashMap<>();
+        private final AtomicLong doneBytes = new AtomicLong();
+        private final AtomicLong transferred = new AtomicLong();
+        private volatile long lastProgressMs = 0;
+        // Idents of the downloads to stop, to make room for one that's due sooner
+        final Set<String> preempted = ConcurrentHashMap.newKeySet();
+        // Bytes we have of each download, by ident
+        private final Map<String, Long> downloaded = new ConcurrentHashMap<>();
+
+        Batch(@NonNull Context context, @NonNull List<Track> tracks, boolean force) {
+            this.context = context;
+            this.bandwidth = new Bandwidth(context, force);
+            this.numTracks = tracks.size();
+            long total = 0;
+            for (Track t : tracks)
+                total += t.size();
+            this.totalBytes = total;
+            this.nb = notification(context, NOTIFY_DOWNLOADING, "Get...", "",
+                                   android.R.drawable.stat_sys_download);
+        }
+
+        // Returns which of the batch `track` is, starting at 1
+        synchronized int started(@NonNull Track track) {
+            Integer number = numbers.get(track.ident);
+            if (number == null) {
+                number = numbers.size() + 1;
+                numbers.put(track.ident, number);
+            }
+            numStarted = numbers.size();
+            lastStarted = track.ident;
+            broadcastStatus(context, DOWNLOADING_STATUS, numStarted, numTracks, track.ident,
+                            bandwidth.bytesPerSec());
+            nb.setContentText(numStarted + " of " + numTracks + ": " + track.artist);
+            mNotificationManager.notify(NOTIFY_DOWNLOADING, nb.build());
+            return number;
+        }
+
+        /* `count` more bytes are done, `fromNetwork` if we had to download
+           them just now.  Updates the notification and the live rate at most
+           every PROGRESS_INTERVAL_MS. */
+        void progress(long count, boolean fromNetwork) {
+            long done = doneBytes.addAndGet(count);
+            if (fromNetwork)
+                transferred.addAndGet(count);
+            long nowMs = SystemClock.elapsedRealtime();
+            if (nowMs - lastProgressMs < PROGRESS_INTERVAL_MS)
+                return;
+            synchronized (this) {
+                if (nowMs - lastProgressMs < PROGRESS_INTERVAL_MS)
+                    return;
+                lastProgressMs = nowMs;
+                int percentage = totalBytes == 0 ? 0 : (int) (100 * done / totalBytes);
+                nb.setProgress(100, percentage, false);
+                mNotificationManager.notify(NOTIFY_DOWNLOADING, nb.build());
+                long bytesPerSec = bandwidth.bytesPerSec();
+                broadcastStatus(context, DOWNLOADING_STATUS, numStarted, numTracks, lastStarted,
+                                bytesPerSec);
+                TcpService.broadcast(TcpService.NFY_DOWNLOADING_TRACK, "RATE",
+                                     String.valueOf(bytesPerSec));
+            }
+        }
+
+        void downloadedOf(@NonNull Track track, long bytes) {
+            downloaded.put(track.ident, bytes);
+        }
+
+        long downloadedOf(@NonNull Track track) {
+            Long bytes = downloaded.get(track.ident);
+            return bytes == null ? 0 : bytes;
+        }
+
+        // Bytes downloaded so far, not counting those from resumed partial downloads
+        long transferred() {
+            return transferred.get();
         }
     }
 
@@ -399,7 +696,7 @@ public final class Downloader extends Worker {
         synchronized (Downloader.class) {
             doCommand();
         }
-        Log.i(TAG, "doWork: Finished");
+        Log.i(TAG, "doWork: Finished, HTTP latency: " + Http.latencyStats());
         return Result.success();
     }
 
@@ -459,8 +756,10 @@ public final class Downloader extends Worker {
             return;
         }
         Log.i(TAG, "commandDeleteTrack: " + ident);
-        if (!track.downloaded)
-            removeFromServer(context, ident);
+        if (!track.downloaded) {
+            queueRemoval(context, ident);
+            sendRemovals(context);
+        }
         track.deleteFiles(context);
         Tracks.restore(context, true);
     }
@@ -475,6 +774,11 @@ public final class Downloader extends Worker {
 
     static boolean downloadDiscouraged(@NonNull Context context) {
         if (!isWifi(context)) {
+            long left = Bandwidth.meteredBytesLeft(context);
+            if (left > 0) {
+                Log.i(TAG, "Not on Wi-Fi, " + left + " bytes of today's metered budget left");
+                return false;
+            }
             Log.i(TAG, "Not on Wi-Fi, download discouraged");
             return true;
         }
@@ -488,8 +792,11 @@ public final class Downloader extends Worker {
 
     private final static String UPDATE_URL = "http://www.waxrat.com/podcasts.php";
 
+    /* The poll also asks the server to remove the tracks in `removals`, and
+       then lists the tags as usual */
     @NonNull
-    private static URL makePollUrl(@NonNull Context context, int since) throws MalformedURLException {
+    private static URL makePollUrl(@NonNull Context context, int since,
+                                   @NonNull List<String> removals) throws MalformedURLException {
         StringBuilder spec = new StringBuilder();
         spec.append(UPDATE_URL);
         spec.append("?p=");
@@ -502,6 +809,10 @@ public final class Downloader extends Worker {
             spec.append("&s=");
             spec.append(since);
         }
+        if (!removals.isEmpty()) {
+            spec.append("&l=1");
+            appendRemovals(spec, removals);
+        }
         return new URL(spec.toString());
     }
 
@@ -512,40 +823,62 @@ public final class Downloader extends Worker {
     }
 
     @NonNull
-    private static URL makeRemoveUrl(@NonNull Context context, @NonNull String ident) throws MalformedURLException {
-        return new URL(UPDATE_URL + "?rm=" + Utilities.urlEncode(ident) +
-            "&p=" + Utilities.urlEncode(Utilities.password(context)));
+    private static URL makeRemoveUrl(@NonNull Context context, @NonNull List<String> idents) throws MalformedURLException {
+        StringBuilder spec = new StringBuilder();
+        spec.append(UPDATE_URL);
+        spec.append("?p=");
+        spec.append(Utilities.urlEncode(Utilities.password(context)));
+        appendRemovals(spec, idents);
+        return new URL(spec.toString());
+    }
+
+    private static void appendRemovals(@NonNull StringBuilder spec, @NonNull List<String> idents) {
+        for (String ident : idents) {
+            spec.append("&rm[]=");
+            spec.append(Utilities.urlEncode(ident));
+        }
     }
 
     /* The timestamp (POSIX time - seconds since 1970) of the last .tag file seen on the server */
     private static int since = -1;
 
-    @Nullable
-    private Tags[] tagsToDownload(@NonNull Context context) {
-        // Check the web server to see if new tracks are available.
-        BufferedReader br = null;
-        ArrayList<Tags> downloads = new ArrayList<>();
+    /* Check the web server to see if new tracks are available, and install
+       them as their .tag records arrive, rather than after the whole response.
+       The first new tracks appear while a long response is still coming.
+
+       The records are staged and installed every INGEST_PUBLISH_MS, each
+       installation all or nothing.  What's still staged is discarded if the
+       response turns out to be bad, and `since` moves on only when we see the
+       "OK" line and everything was installed, so otherwise the next poll gets
+       everything again (and Tags.writeNewFiles skips what we did install). */
+    private void ingestTags(@NonNull Context context) {
+        HttpURLConnection h = null;
+        InputStream in = null;
+        TagsParser p = null;
+        ArrayList<Tags> staged = new ArrayList<>();
+        int received = 0;
+        long lastInstallMs = 0;
+        boolean installed = true;
         int tracksOnServer = -1;
         try {
             TcpService.broadcast(TcpService.NFY_POLLING_FOR_TRACKS, "START");
-            URL url = makePollUrl(context, since);
+            List<String> removals = removalsToSend(context);
+            URL url = makePollUrl(context, since, removals);
             Log.i(TAG, "URL " + url);
-            HttpURLConnection h = (HttpURLConnection) url.openConnection();
-            h.setRequestMethod("GET");
-            h.setReadTimeout(15000);
-            h.connect();
+            h = Http.open(url, 15000);
+            Http.connect("poll", h);
             String contentType = h.getContentType();
             if (contentType == null) {
                 Log.w(TAG, "No Content-Type");
                 announce(context, "Oops, no content type");
-                return null;
+                return;
             }
             if (!contentType.equals("text/plain") && !contentType.startsWith("text/plain;")) {
                 /* This might happen if we're connected to a Wi-Fi captive portal
                    and haven't authorized yet. */
                 Note.e(TAG, "Wrong Content-Type |" + contentType + '|');
                 announce(context, "Oops, wrong content type: " + contentType);
-                return null;
+                return;
             }
             /*
               The podcasts.php script delivers to us the contents of all .tag
@@ -553,45 +886,49 @@ public final class Downloader extends Worker {
               separated by a single blank line.  The end of the output is the
               line "OK" to help us ensure we got the whole output.
              */
-            br = new BufferedReader(new InputStreamReader(h.getInputStream()));
-            ArrayList<String> tagLines = new ArrayList<>();
+            in = h.getInputStream();
+            p = new TagsParser(in);
             @SuppressWarnings("UnusedAssignment") int newest = -1;
             for (;;) {
-                String line = br.readLine();
-                if (line == null) {
+                if (!p.nextLine()) {
                     /* This, too, indicates we're not connected to the server we expect */
                     Note.e(TAG, "No OK");
                     announce(context, "Oops, no OK");
-                    return null;
+                    return;
                 }
-                if (line.startsWith("OK\t")) {
-                    newest = Integer.parseInt(line.substring(3));
-                    line = br.readLine();
-                    if (line != null) {
+                if (p.startsWith("OK\t")) {
+                    newest = p.intValue();
+                    if (p.nextLine()) {
                         /* This, too, indicates we're not connected to the server we expect */
-                        Note.e(TAG, "Extra output |" + line + '|');
-                        announce(context, "Oops, extra: " + line);
-                        return null;
-                    }
-                    if (!tagLines.isEmpty()) {
-                        downloads.add(new Tags(tagLines));
-                        tagLines.clear();
+                        Note.e(TAG, "Extra output |" + p.line() + '|');
+                        announce(context, "Oops, extra: " + p.line());
+                        return;
                     }
                     break;
                 }
-                if (line.isEmpty()) {
-                    downloads.add(new Tags(tagLines));
-                    tagLines.clear();
+                if (p.isBlank())
                     continue;
+                staged.add(new Tags(p));
+                ++received;
+                long nowMs = SystemClock.elapsedRealtime();
+                if (nowMs - lastInstallMs >= INGEST_PUBLISH_MS) {
+                    installed &= installTags(context, staged);
+                    lastInstallMs = nowMs;
                 }
-                tagLines.add(line);
             }
+            removalsSent(context, removals);
 
             // If newest==-1, then there are no tracks on the server
             Log.i(TAG, "newest=" + newest);
+            installed &= installTags(context, staged);
+            if (!installed) {
+                // Leave `since` alone so that the next poll gets them again
+                announce(context, "Oops, could not save new tracks");
+                return;
+            }
             since = newest;
 
-            tracksOnServer = downloads.size();
+            tracksOnServer = received;
             if (tracksOnServer != 0)
                 Log.i(TAG, "New tracks on server: " + tracksOnServer);
             else
@@ -601,52 +938,45 @@ public final class Downloader extends Worker {
             // Likely transient networking problem
             Log.i(TAG, "UnknownHostException");
             announce(context, "Unknown host, try again");
-            return null;
         }
         catch (java.net.ConnectException ex) {
             // Likely transient networking problem
             Log.i(TAG, "ConnectException");
             announce(context, "Connect failed, try again");
-            return null;
         }
         catch (java.net.SocketException ex) {
             // Likely transient networking problem
             Log.i(TAG, "SocketException");
             announce(context, "Socket failed, try again");
-            return null;
         }
         catch (java.net.SocketTimeoutException ex) {
             // Likely transient networking problem
             Log.i(TAG, "SocketTimeoutException");
             announce(context, "Socket timeout, try again");
-            return null;
         }
         catch (Exception ex) {
             Note.e(TAG, "Exception getting track list", ex);
             announce(context, "Oops, try again");
-            return null;
         }
         finally {
-            if (br != null)
+            if (h != null)
+                Http.finish(h, in);
+            if (p != null)
                 try {
-                    br.close();
+                    p.close();
                 }
                 catch (IOException ex) {
                     Note.e(TAG, "Exception closing reader", ex);
                 }
             TcpService.broadcast(TcpService.NFY_POLLING_FOR_TRACKS, "FINISH", String.valueOf(tracksOnServer));
         }
-        Log.i(TAG, "Tags to download: " + downloads.size());
-        if (downloads.isEmpty())
-            return null;
-        return downloads.toArray(new Tags[0]);
     }
 
     /* Pull the audio file from the server and move it into Tracks.FOLDER.
        If successful, return true. */
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     private boolean downloadAudio(@NonNull Context context, @NonNull Track track,
-                                  boolean thenStart, int downloadIndex, int numDownloads) {
+                                  boolean thenStart, @NonNull Batch batch) {
         Log.i(TAG, "Download " + track);
 
         if (track.downloaded) {
@@ -656,54 +986,95 @@ public final class Downloader extends Worker {
 
         String ident = track.ident;
         File folder = Utilities.getFolder(context);
-        File dest = new File(folder, "INCOMING");
-        if (!dest.exists())
-            Log.d(TAG, "Destination does not already exist: " + dest);
-        else if (dest.delete())
-            Log.w(TAG, "Deleted pre-existing destination download: " + dest);
-        else {
-            Note.w(TAG, "Could not delete pre-existing destination file: " + dest);
+        // Older versions downloaded everything to this one file
+        Track.deleteFile(new File(folder, "INCOMING"));
+
+        File dest = track.getPartialFile(context);
+        File destInfo = track.getPartialInfoFile(context);
+        PartialDownload part = new PartialDownload(dest, destInfo, track.size());
+        long offset = part.resumeAt();
+
+        // So a download never fills the disk
+        if (!Storage.makeRoom(context, track)) {
+            Log.w(TAG, "No room to download " + track);
             return false;
         }
 
-        broadcastStatus(context, DOWNLOADING_STATUS, downloadIndex, numDownloads, ident);
-
-        NotificationCompat.Builder nb = notification(context, NOTIFY_DOWNLOADING, "Get...",
-                (downloadIndex) + " of " + numDownloads + ": " + track.artist,
-                android.R.drawable.stat_sys_download);
+        int downloadIndex = batch.started(track);
 
         TcpService.broadcast(TcpService.NFY_DOWNLOADING_TRACK, "START",
-                String.valueOf(downloadIndex), String.valueOf(numDownloads),
+                String.valueOf(downloadIndex), String.valueOf(batch.numTracks),
                 Utilities.orElse(track.artist, "(artist)"),
                 Utilities.orElse(track.title, "(title)"));
 
-        BufferedInputStream bis = null;
-        FileOutputStream out = null;
+        ReadableByteChannel src = null;
         long downloadedSize = 0;
+        MessageDigest md = null;
+        // With thenStart, start playing once we have this many bytes, or -1 once we have
+        long streamAt = !thenStart ? -1
+                : mStreamingPrefixBytes > 0 ? Math.min(mStreamingPrefixBytes, track.size())
+                : Long.MAX_VALUE;
         try {
-            out = new FileOutputStream(dest);
-
             URL url = makeGetUrl(context, track.ident);
             Log.i(TAG, "Download track: " + url);
-            HttpURLConnection h = (HttpURLConnection) url.openConnection();
-            h.setRequestMethod("GET");
-            h.setReadTimeout(30000);
-            h.connect();
-            bis = new BufferedInputStream(h.getInputStream());
-
-            final int chunk = 10240;
-            byte[] data = new byte[chunk];
-            int count;
-            int lastPercentage = 0;
-            while ((count = bis.read(data, 0, chunk)) != -1) {
-                out.write(data, 0, count);
-                downloadedSize += count;
-
-                int percentage = (int) (100 * downloadedSize / track.size);
-                if (percentage != lastPercentage) {
-                    lastPercentage = percentage;
-                    nb.setProgress(100, percentage, false);
-                    mNotificationManager.notify(NOTIFY_DOWNLOADING, nb.build());
+            HttpURLConnection h = Http.open(url, 30000);
+            if (offset != 0) {
+                // If the file on the server has changed, If-Range makes it send all of the new one
+                h.setRequestProperty("Range", "bytes=" + offset + "-");
+                h.setRequestProperty("If-Range", part.validator());
+            }
+            Http.connect("get", h);
+            if (offset != 0) {
+                String range = h.getHeaderField("Content-Range");
+                if (h.getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+                        && range != null && range.startsWith("bytes " + offset + "-"))
+                    Log.i(TAG, "Resuming at " + offset + " of " + track.size());
+                else {
+                    Log.i(TAG, "Not resuming, got " + h.getResponseCode() + " " + range);
+                    offset = 0;
+                }
+            }
+            downloadedSize = offset;
+            if (!part.open(offset, validatorOf(h)))
+                throw new IOException("No space for " + track.size() + " bytes");
+            batch.progress(offset, false);
+            GrowingAudioSource.started(ident, offset);
+
+            InputStream in = h.getInputStream();
+            if (track.sha256 != null) {
+                // Digest the bytes as they go by, after those we already have
+                md = MessageDigest.getInstance("SHA-256");
+                digestPrefix(md, part.channel(), offset);
+                in = new DigestInputStream(in, md);
+            }
+            src = Channels.newChannel(in);
+            for (;;) {
+                long chunk = batch.bandwidth.chunk(TRANSFER_BYTES);
+                long count = 0;
+                try {
+                    count = part.receive(src, chunk);
+                }
+                finally {
+                    batch.bandwidth.settle(chunk, count);
+                }
+                if (count == 0)
+                    break;
+                downloadedSize = part.have();
+                batch.progress(count, true);
+                if (!batch.bandwidth.transferred(count)) {
+                    Log.i(TAG, "Over the metered budget, stopping " + track + " at " + downloadedSize);
+                    break;
+                }
+                batch.downloadedOf(track, downloadedSize);
+                GrowingAudioSource.grew(ident, downloadedSize);
+                if (batch.preempted.contains(ident)) {
+                    Log.i(TAG, "Stopping " + track + " at " + downloadedSize);
+                    break;
+                }
+                if (streamAt != -1 && downloadedSize >= streamAt) {
+                    Log.i(TAG, "Start playing " + track + " at " + downloadedSize + " bytes");
+                    startPlaying(context, ident);
+                    streamAt = -1;
                 }
             }
         }
@@ -732,73 +1103,190 @@ public final class Downloader extends Worker {
             return false;
         }
         finally {
-            if (bis != null)
+            if (src != null)
                 try {
-                    bis.close();
+                    src.close();
                 }
                 catch (IOException ex) {
                     Note.e(TAG, "Exception closing reader", ex);
                 }
-            if (out != null)
-                try {
-                    out.close();
-                }
-                catch (IOException ex) {
-                    Note.e(TAG, "Exception closing output download " + dest, ex);
-                }
-            broadcastStatus(context, IDLE_STATUS);
+            part.close();
+            GrowingAudioSource.ended(ident);
+            Storage.release(ident);
             TcpService.broadcast(TcpService.NFY_DOWNLOADING_TRACK, "FINISH",
-                    String.valueOf(track.size),
+                    String.valueOf(track.size()),
                     String.valueOf(downloadedSize));
         }
 
-        if (downloadedSize != track.size) {
+        if (downloadedSize < track.size()
+                && (batch.preempted.contains(ident) || batch.bandwidth.overBudget()))
+            return false;   // Keep what we have, to resume
+        if (downloadedSize != track.size()) {
             Note.e(TAG, "Downloaded " + downloadedSize + " bytes, expected " +
-                    track.size + " for " + track);
-            if (!dest.delete())
-                Note.w(TAG, "Couldn't delete " + dest);
+                    track.size() + " for " + track);
+            if (downloadedSize > track.size()) {
+                Track.deleteFile(dest);
+                Track.deleteFile(destInfo);
+            }
+            // else keep what we have, to resume next time
             return false;
         }
+        if (md != null) {
+            String sha256 = Utilities.toHex(md.digest());
+            if (!sha256.equalsIgnoreCase(track.sha256)) {
+                Note.e(TAG, "Downloaded SHA-256 " + sha256 + ", expected " + track.sha256 +
+                        " for " + track);
+                Track.deleteFile(dest);
+                Track.deleteFile(destInfo);
+                return false;
+            }
+        }
         Log.i(TAG, "Download successful: " + track);
 
         File installed = new File(folder, track.ident + ".mp3");
         if (!dest.renameTo(installed)) {
             Note.w(TAG, "Couldn't rename " + dest + " to " + installed);
-            if (!dest.delete())
-                Note.w(TAG, "Couldn't delete " + dest);
+            Track.deleteFile(dest);
+            Track.deleteFile(destInfo);
             return false;
         }
+        Track.deleteFile(destInfo);
         Log.i(TAG, "Renamed " + dest + " to " + installed);
 
         Tracks.restore(context, true);
 
-        if (thenStart) {
-            Intent in = new Intent(MusicService.ACTION_PLAY);
-            in.setPackage(Utilities.PACKAGE);
-            in.putExtra("ident", ident);
-            // TODO: Fix this. Use startForegroundService or some such, don't try/catch
+        if (streamAt != -1)
+            startPlaying(context, ident);
+        queueRemoval(context, track.ident);
+        return true;
+    }
+
+    private static void startPlaying(@NonNull Context context, @NonNull String ident) {
+        Intent in = new Intent(MusicService.ACTION_PLAY);
+        in.setPackage(Utilities.PACKAGE);
+        in.putExtra("ident", ident);
+        // TODO: Fix this. Use startForegroundService or some such, don't try/catch
+        try {
+            context.startService(in);
+        }
+        catch (IllegalStateException exc) {
+            // Not allowed to start service Intent: app is in background
+            Note.w(TAG, "downloadFile: Couldn't start service: " + exc.getMessage());
+        }
+    }
+
+    // Add the first `length` bytes of `fc` to `md`
+    private static void digestPrefix(@NonNull MessageDigest md, @NonNull FileChannel fc,
+                                     long length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        for (long pos = 0; pos < length; ) {
+            buf.clear();
+            if (length - pos < buf.capacity())
+                buf.limit((int) (length - pos));
+            int n = fc.read(buf, pos);
+            if (n == -1)
+                throw new IOException("Partial download shorter than " + length);
+            buf.flip();
+            md.update(buf);
+            pos += n;
+        }
+    }
+
+    /* The validator for If-Range: the ETag if it's a strong one, otherwise
+       the Last-Modified time.  Null if the server gave neither. */
+    @Nullable
+    private static String validatorOf(@NonNull HttpURLConnection h) {
+        String etag = h.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/"))
+            return etag;
+        return h.getHeaderField("Last-Modified");
+    }
+
+    /* Tracks we've downloaded (or deleted without downloading) that the server
+       doesn't know to remove yet.  Saved in PENDING_REMOVALS so none is
+       forgotten, which would have the server offer the track again.  They go
+       to the server in one request after a batch of downloads, or with the
+       next poll if that request fails. */
+    private final static String PENDING_REMOVALS = "_remove.txt";
+    private final static int MAX_REMOVALS_PER_REQUEST = 50;
+    private static final Object removalsLock = new Object();
+    @Nullable private static LinkedHashSet<String> pendingRemovals;    // Read when first needed
+
+    @NonNull
+    private static LinkedHashSet<String> pendingRemovals(@NonNull Context context) {
+        if (pendingRemovals == null) {
+            pendingRemovals = new LinkedHashSet<>();
+            File file = new File(Utilities.getFolder(context), PENDING_REMOVALS);
             try {
-                context.startService(in);
+                for (String ident : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+                    if (!ident.isEmpty())
+                        pendingRemovals.add(ident);
+            }
+            catch (NoSuchFileException ex) {
+                // Nothing pending
             }
-            catch (IllegalStateException exc) {
-                // Not allowed to start service Intent: app is in background
-                Note.w(TAG, "downloadFile: Couldn't start service: " + exc.getMessage());
+            catch (IOException ex) {
+                Note.e(TAG, "I/O reading " + file, ex);
             }
         }
-        removeFromServer(context, track.ident);
-        return true;
+        return pendingRemovals;
+    }
+
+    private static void savePendingRemovals(@NonNull Context context) {
+        StringBuilder sb = new StringBuilder();
+        for (String ident : pendingRemovals(context))
+            sb.append(ident).append('\n');
+        Utilities.writeFile(context, PENDING_REMOVALS, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void queueRemoval(@NonNull Context context, @NonNull String ident) {
+        synchronized (removalsLock) {
+            if (pendingRemovals(context).add(ident))
+                savePendingRemovals(context);
+        }
     }
 
-    private void removeFromServer(@NonNull Context context, @NonNull String ident) {
-        Log.i(TAG, "removeFromServer " + ident);
+    // The next removals to send in one request, or none
+    @NonNull
+    private static List<String> removalsToSend(@NonNull Context context) {
+        synchronized (removalsLock) {
+            List<String> idents = new ArrayList<>();
+            for (String ident : pendingRemovals(context)) {
+                if (idents.size() == MAX_REMOVALS_PER_REQUEST)
+                    break;
+                idents.add(ident);
+            }
+            return idents;
+        }
+    }
+
+    private static void removalsSent(@NonNull Context context, @NonNull List<String> idents) {
+        if (idents.isEmpty())
+            return;
+        Log.i(TAG, "Deleted from server: " + idents);
+        synchronized (removalsLock) {
+            if (pendingRemovals(context).removeAll(idents))
+                savePendingRemovals(context);
+        }
+    }
+
+    // Ask the server to remove the pending removals.  Those it doesn't, we'll ask again
+    private static void sendRemovals(@NonNull Context context) {
+        List<String> idents;
+        while (!(idents = removalsToSend(context)).isEmpty())
+            if (!removeFromServer(context, idents))
+                break;
+    }
+
+    private static boolean removeFromServer(@NonNull Context context, @NonNull List<String> idents) {
+        Log.i(TAG, "removeFromServer " + idents.size());
+        HttpURLConnection h = null;
         BufferedReader br = null;
         try {
-            URL url = makeRemoveUrl(context, ident);
+            URL url = makeRemoveUrl(context, idents);
             Log.i(TAG, "removeFromServer " + url);
-            HttpURLConnection h = (HttpURLConnection) url.openConnection();
-            h.setRequestMethod("GET");
-            h.setReadTimeout(15000);
-            h.connect();
+            h = Http.open(url, 15000);
+            Http.connect("rm", h);
             br = new BufferedReader(new InputStreamReader(h.getInputStream()));
             String line;
             boolean ok = false;
@@ -809,10 +1297,12 @@ public final class Downloader extends Worker {
                 }
                 Note.w(TAG, "removeFromServer: Unexpected line: " + line);
             }
-            if (ok)
-                Log.i(TAG, "Deleted from server: " + ident);
-            else
-                Note.w(TAG, "Not OK deleting " + ident);
+            if (!ok) {
+                Note.w(TAG, "Not OK deleting " + idents);
+                return false;
+            }
+            removalsSent(context, idents);
+            return true;
         }
         catch (java.net.ConnectException ex) {
             // Likely transient networking problem
@@ -833,6 +1323,9 @@ public final class Downloader extends Worker {
                 catch (IOException ex) {
                     Note.e(TAG, "Exception closing reader", ex);
                 }
+            else if (h != null)
+                Http.finish(h, null);
         }
+        return false;
     }
 }
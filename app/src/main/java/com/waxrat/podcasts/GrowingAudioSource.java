@@ -0,0 +1,169 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* The audio of a track that's still downloading, for MediaPlayer to play
+   while the rest arrives.
+
+   Downloader tells us (started, grew, ended) how much of the track's .part
+   file it has written.  A read of bytes that aren't there yet waits for
+   them, so a seek past what we have waits until the download gets there.
+   The .part file is preallocated, so its length says nothing; only what
+   Downloader tells us does.  When the download finishes, the .part file is
+   renamed to the .mp3 file, which doesn't disturb the file we have open. */
+final class GrowingAudioSource extends MediaDataSource {
+    private final static String TAG = "Podcasts.GrowingAudioSource";
+
+    // Give up on a read that has waited this long for the download
+    private final static long READ_TIMEOUT_MS = 60000;
+
+    private static final class Growth {
+        volatile long available;    // Bytes at the start of the file we have
+        volatile boolean ended;     // True if no more are coming
+    }
+
+    // The downloads in progress, by track ident
+    private static final Map<String, Growth> downloads = new ConcurrentHashMap<>();
+
+    static void started(@NonNull String ident, long available) {
+        Growth g = new Growth();
+        g.available = available;
+        downloads.put(ident, g);
+    }
+
+    static void grew(@NonNull String ident, long available) {
+        Growth g = downloads.get(ident);
+        if (g == null)
+            return;
+        synchronized (g) {
+            g.available = available;
+            g.notifyAll();
+        }
+    }
+
+    static void ended(@NonNull String ident) {
+        Growth g = downloads.remove(ident);
+        if (g == null)
+            return;
+        synchronized (g) {
+            g.ended = true;
+            g.notifyAll();
+        }
+    }
+
+    @NonNull private final String ident;
+    @NonNull private final Growth growth;
+    @NonNull private final RandomAccessFile file;
+    private final long size;
+
+    private GrowingAudioSource(@NonNull String ident, @NonNull Growth growth,
+                               @NonNull RandomAccessFile file, long size) {
+        this.ident = ident;
+        this.growth = growth;
+        this.file = file;
+        this.size = size;
+    }
+
+    /* A source for `track` if it's downloading, otherwise null.  Throws
+       FileNotFoundException if the download has just finished and its .part
+       file is already the .mp3 file. */
+    @Nullable
+    static GrowingAudioSource open(@NonNull Context context, @NonNull Track track)
+            throws FileNotFoundException {
+        Growth g = downloads.get(track.ident);
+        if (g == null)
+            return null;
+        RandomAccessFile file = new RandomAccessFile(track.getPartialFile(context), "r");
+        return new GrowingAudioSource(track.ident, g, file, track.size());
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (position >= this.size)
+            return -1;
+        long available = waitFor(position);
+        int n = (int) Math.min(size, available - position);
+        return file.getChannel().read(ByteBuffer.wrap(buffer, offset, n), position);
+    }
+
+    // Wait until we have the byte at `position`.  Returns how many we have
+    private long waitFor(long position) throws IOException {
+        long available = growth.available;
+        if (available > position)
+            return available;
+        Log.i(TAG, "Waiting for " + ident + " at " + position + ", have " + available);
+        long deadline = System.currentTimeMillis() + READ_TIMEOUT_MS;
+        synchronized (growth) {
+            for (;;) {
+                available = growth.available;
+                if (available > position)
+                    return available;
+                if (growth.ended)
+                    throw new IOException("Download of " + ident + " ended at " + available);
+                long waitMs = deadline - System.currentTimeMillis();
+                if (waitMs <= 0)
+                    throw new IOException("Timeout waiting for " + ident + " at " + position);
+                try {
+                    growth.wait(waitMs);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for " + ident);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
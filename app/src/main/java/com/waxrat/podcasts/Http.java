@@ -0,0 +1,143 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* The one way we talk HTTP to the server.
+
+   HttpURLConnection keeps idle connections to the server open and reuses
+   them, but only for a response whose body was read to the end and closed,
+   and only if nobody called disconnect.  So open connections here and give
+   them back with `finish`, which does that even when the caller stopped
+   reading early.
+
+   Also keeps the latency of each kind of request (the time from sending it
+   to having the response headers) so that we can see what reuse and
+   batching save. */
+final class Http {
+    private final static String TAG = "Podcasts.Http";
+
+    private Http() {
+    }
+
+    static {
+        // The defaults, but say so: everything here depends on them
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", "5");
+    }
+
+    // An unconnected GET of `url`.  Set any request headers, then call `connect`
+    @NonNull
+    static HttpURLConnection open(@NonNull URL url, int readTimeoutMs) throws IOException {
+        HttpURLConnection h = (HttpURLConnection) url.openConnection();
+        h.setRequestMethod("GET");
+        h.setConnectTimeout(15000);
+        h.setReadTimeout(readTimeoutMs);
+        h.setUseCaches(false);
+        return h;
+    }
+
+    // Send the request and wait for the response headers, counting it as an `op` request
+    static void connect(@NonNull String op, @NonNull HttpURLConnection h) throws IOException {
+        long startMs = SystemClock.elapsedRealtime();
+        h.connect();
+        h.getResponseCode();
+        record(op, SystemClock.elapsedRealtime() - startMs);
+    }
+
+    /* Done with `h`, whose body we've been reading from `in` (if we got that
+       far).  Reads and discards the rest of the body so the connection can
+       be reused. */
+    static void finish(@NonNull HttpURLConnection h, @Nullable InputStream in) {
+        try {
+            if (in == null)
+                in = h.getResponseCode() >= 400 ? h.getErrorStream() : h.getInputStream();
+            if (in == null)
+                return;
+            byte[] b = new byte[4096];
+            while (in.read(b) != -1)
+                continue;
+            in.close();
+        }
+        catch (IOException ex) {
+            // The connection won't be reused, which is all this costs us
+            Log.i(TAG, "finish: " + ex.getMessage());
+        }
+    }
+
+    private static final class Latency {
+        int count;
+        long totalMs;
+        long maxMs;
+    }
+
+    private static final Map<String, Latency> latencies = new TreeMap<>();
+
+    private static synchronized void record(@NonNull String op, long ms) {
+        Latency l = latencies.get(op);
+        if (l == null) {
+            l = new Latency();
+            latencies.put(op, l);
+        }
+        ++l.count;
+        l.totalMs += ms;
+        if (ms > l.maxMs)
+            l.maxMs = ms;
+    }
+
+    // e.g., "get 3 avg 41 max 52 ms, poll 1 avg 120 max 120 ms"
+    @NonNull
+    static synchronized String latencyStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Latency> e : latencies.entrySet()) {
+            Latency l = e.getValue();
+            if (sb.length() != 0)
+                sb.append(", ");
+            sb.append(e.getKey()).append(' ').append(l.count)
+                    .append(" avg ").append(l.totalMs / l.count)
+                    .append(" max ").append(l.maxMs).append(" ms");
+        }
+        return sb.toString();
+    }
+}
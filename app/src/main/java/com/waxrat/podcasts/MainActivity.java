@@ -52,8 +52,6 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
@@ -111,6 +109,13 @@ public class MainActivity extends ListActivity implements OnClickListener,
 
     private final static String AFTER_TRACK_PREF = "afterTrack";
     private final static String AUTO_DOWNLOAD_ON_WIFI_PREF = "autoDownloadOnWifi";
+    private final static String MAX_PARALLEL_DOWNLOADS_PREF = "maxParallelDownloads";
+    private final static String STREAMING_PREFIX_KB_PREF = "streamingPrefixKb";
+    private final static String DISK_BUDGET_MB_PREF = "diskBudgetMb";
+    private final static String UNMETERED_RATE_KB_PREF = "unmeteredRateKb";
+    private final static String METERED_RATE_KB_PREF = "meteredRateKb";
+    private final static String CLIENT_RATE_KB_PREF = "clientRateKb";
+    private final static String METERED_DAILY_MB_PREF = "meteredDailyMb";
 
     /* What to do at the end of the current track */
     enum AfterTrack {
@@ -142,6 +147,7 @@ public class MainActivity extends ListActivity implements OnClickListener,
     private int mDownloadTrackNum = -1;
     private int mDownloadNumTracks = -1;
     private String mDownloadIdent = null;
+    private long mDownloadBytesPerSec = -1;
 
     private void setDownloadable() {
         Log.d(TAG, "setDownloadable " + mDownloadStatus + " " + mDownloadTrackNum +
@@ -153,6 +159,8 @@ public class MainActivity extends ListActivity implements OnClickListener,
             break;
         case Downloader.DOWNLOADING_STATUS:
             msg = "downloading " + mDownloadTrackNum + " of " + mDownloadNumTracks;
+            if (mDownloadBytesPerSec > 0)
+                msg += String.format(Locale.US, ", %.0fKB/s", mDownloadBytesPerSec / 1024.0);
             break;
         case Downloader.IDLE_STATUS: {
             int num = Tracks.numDownloadable();
@@ -182,12 +190,12 @@ public class MainActivity extends ListActivity implements OnClickListener,
             clearSeekBar();
             return;
         }
-        if (t.durMs <= 0) {
+        if (t.durMs() <= 0) {
             clearSeekBar();
             return;
         }
-        mSeekBar.setMax(t.durMs);
-        mSeekBar.setProgress(t.curMs);
+        mSeekBar.setMax(t.durMs());
+        mSeekBar.setProgress(t.curMs());
         mRemainingText.setText(Utilities.mmss(t.remMs()));
         if (mTrackArrayAdapter != null)
             mTrackArrayAdapter.notifyDataSetChanged();
@@ -253,6 +261,7 @@ public class MainActivity extends ListActivity implements OnClickListener,
         mDownloadTrackNum = intent.getIntExtra(Downloader.TRACK_NUM_STATUS_EXTRA, -1);
         mDownloadNumTracks = intent.getIntExtra(Downloader.NUM_TRACKS_STATUS_EXTRA, -1);
         mDownloadIdent = intent.getStringExtra(Downloader.IDENT_EXTRA);
+        mDownloadBytesPerSec = intent.getLongExtra(Downloader.BYTES_PER_SEC_STATUS_EXTRA, -1);
         setDownloadable();
     }
 
@@ -405,7 +414,7 @@ public class MainActivity extends ListActivity implements OnClickListener,
     public void onPause() {
         super.onPause();
         Log.i(TAG, "onPause");
-        Tracks.writeState(this, "MainActivity.onPause");
+        Tracks.flushStateSoon(this, "MainActivity.onPause");
     }
 
     /*
@@ -467,6 +476,18 @@ public class MainActivity extends ListActivity implements OnClickListener,
         Downloader.mAutoDownloadOnWifi = prefs.getBoolean(AUTO_DOWNLOAD_ON_WIFI_PREF, true);
         setAutoDownloadOnWifiIndicator();
         Log.i(TAG, "onCreate: " + autoDownloadOnWifiLabel(Downloader.mAutoDownloadOnWifi));
+        Downloader.mMaxParallelDownloads =
+                Math.max(1, prefs.getInt(MAX_PARALLEL_DOWNLOADS_PREF, Downloader.mMaxParallelDownloads));
+        Downloader.mStreamingPrefixBytes = 1024L *
+                prefs.getInt(STREAMING_PREFIX_KB_PREF, (int) (Downloader.mStreamingPrefixBytes / 1024));
+        Storage.mBudgetBytes = 1024L * 1024 * prefs.getInt(DISK_BUDGET_MB_PREF, 0);
+        Bandwidth.mUnmeteredBytesPerSec = 1024L *
+                prefs.getInt(UNMETERED_RATE_KB_PREF, (int) (Bandwidth.mUnmeteredBytesPerSec / 1024));
+        Bandwidth.mMeteredBytesPerSec = 1024L *
+                prefs.getInt(METERED_RATE_KB_PREF, (int) (Bandwidth.mMeteredBytesPerSec / 1024));
+        Bandwidth.mClientBytesPerSec = 1024L *
+                prefs.getInt(CLIENT_RATE_KB_PREF, (int) (Bandwidth.mClientBytesPerSec / 1024));
+        Bandwidth.mMeteredDailyBytes = 1024L * 1024 * prefs.getInt(METERED_DAILY_MB_PREF, 0);
 
         Downloader.schedule(this, "main");
 
@@ -771,17 +792,17 @@ public class MainActivity extends ListActivity implements OnClickListener,
                     percentView.setText("Done");
                     nextQuietView.setText("");
                 }
-                else if (t.curMs == 0) {
+                else if (t.curMs() == 0) {
                     percentView.setText("");
                     nextQuietView.setText(nextQuiet(t));
                 }
                 else {
-                    double per = 100.0 * t.curMs / t.durMs;
+                    double per = 100.0 * t.curMs() / t.durMs();
                     percentView.setText(String.format(Locale.US, "%.0f%%", per));
                     nextQuietView.setText(nextQuiet(t));
                 }
 
-                durationView.setText(Utilities.mmss(t.durMs));
+                durationView.setText(Utilities.mmss(t.durMs()));
             }
             if (position != Tracks.currentPosition())
                 rowView.setBackgroundColor(Color.BLACK);
@@ -798,13 +819,9 @@ public class MainActivity extends ListActivity implements OnClickListener,
     /* Time (as a string "0:00") until the next quiet period.
        Or the empty string if there is no next quiet period. */
     private static String nextQuiet(@NonNull Track t) {
-        if (t.quiet != null)
-            for (int q : t.quiet) {
-                int ms = q - t.curMs;
-                if (ms >= 0)
-                    return Utilities.mmss(ms);
-            }
-        return "";
+        int curMs = t.curMs();
+        int q = t.nextQuietAtOrAfter(curMs);
+        return q == -1 ? "" : Utilities.mmss(q - curMs);
     }
 
     private void showTrackInfo(@NonNull Track t) {
@@ -822,30 +839,23 @@ public class MainActivity extends ListActivity implements OnClickListener,
                 .append("\n\n");
         sb.append("Priority: \"").append(t.priority).append("\"\n\n");
         sb.append("Artist: \"").append(t.artist).append("\"\n\n");
-        sb.append(Utilities.mmss(t.curMs))
+        sb.append(Utilities.mmss(t.curMs()))
                 .append(" + ")
                 .append(Utilities.mmss(t.remMs()))
                 .append(" = ")
-                .append(Utilities.mmss(t.durMs));
+                .append(Utilities.mmss(t.durMs()));
 
+        Tracks.Snapshot snapshot = Tracks.snapshot();
         int remMs = 0;
         switch (mAfterTrack) {
         case FIRST:
             /* Show how long until this track will finish playing if all lower-numbered
                tracks are played first. */
-            for (int pos = 0; pos <= position; ++pos) {
-                Track u = Tracks.track(pos);
-                if (u != null)
-                    remMs += u.remMs();
-            }
+            remMs = snapshot.remTree.sumBefore(position + 1);
             break;
         case NEXT:
             /* Show how long until the final track will finish playing */
-            for (int pos = position; pos < Tracks.numTracks(); ++pos) {
-                Track u = Tracks.track(pos);
-                if (u != null)
-                    remMs += u.remMs();
-            }
+            remMs = snapshot.remTree.sum(position, snapshot.tracks.size());
             break;
         case STOP:
             /* Show how long until the current track will finish playing */
@@ -857,7 +867,7 @@ public class MainActivity extends ListActivity implements OnClickListener,
         sb.append(" on ");
         sb.append(Utilities.timestampStr(System.currentTimeMillis() + remMs));
 
-        sb.append("\n\nDownloaded ").append(Utilities.timestampStr(t.when * 1000));
+        sb.append("\n\nDownloaded ").append(Utilities.timestampStr(t.when() * 1000));
 
         alert("Track #" + (position + 1), sb.toString());
     }
@@ -898,7 +908,7 @@ public class MainActivity extends ListActivity implements OnClickListener,
         /* If this track is "done", start from the beginning.
            Otherwise, start from where we left off last but rewound a little. */
         if (!t.isFinished()) {
-            curMs = t.curMs - MusicService.OVERLAP_MS;
+            curMs = t.curMs() - MusicService.OVERLAP_MS;
             if (curMs < 0)
                 curMs = 0;
         }
@@ -993,60 +1003,27 @@ public class MainActivity extends ListActivity implements OnClickListener,
         pcs.add(sb.toString());
     }
 
-    private static CharSequence[] makePriorityItems() {
-        int numTracks = 0;
-        int remMs = 0;
-        int numDownloadable = 0;
-        int numFinished = 0;
-        int lastPcc = -1;
+    // One item for each of the snapshot's priority classes, in the same order
+    private static CharSequence[] makePriorityItems(@NonNull Tracks.Snapshot snapshot) {
         ArrayList<CharSequence> pcs = new ArrayList<>();
-        for (Track track : Tracks.copyTracks()) {
-            int pcc = track.priorityClassChar();
-            if (numTracks != 0 && pcc != lastPcc) {
-                addPriorityItem(pcs, lastPcc, numTracks, remMs, numDownloadable, numFinished);
-                numTracks = 0;
-                remMs = 0;
-                numDownloadable = 0;
-                numFinished = 0;
-            }
-            numTracks++;
-            remMs += track.remMs();
-            if (!track.downloaded)
-                numDownloadable++;
-            if (track.isFinished())
-                numFinished++;
-            lastPcc = pcc;
-        }
-        if (numTracks != 0)
-            addPriorityItem(pcs, lastPcc, numTracks, remMs, numDownloadable, numFinished);
+        for (Tracks.PriorityClass pc : snapshot.classes)
+            addPriorityItem(pcs, pc.classChar, pc.count, pc.remMs(), pc.numDownloadable(),
+                            pc.numFinished());
         return pcs.toArray(new CharSequence[0]);
     }
 
-    private static int findByGlyph(@NonNull String item) {
-        // Find the index of the first track that's using this item's priority glyph
-        List<Track> tracks = Tracks.copyTracks();
-        int i = 0;
-        for (Track track : Tracks.copyTracks()) {
-            String pg = priorityGlyph(track.priorityClassChar());
-            if (item.startsWith(pg))
-                return i;
-            i++;
-        }
-        return -1;
-    }
-
     private void askPriorities() {
         AlertDialog.Builder alert = new AlertDialog.Builder(this);
         alert.setTitle("Priorities");
         alert.setCancelable(true);
-        CharSequence[] items = makePriorityItems();
+        Tracks.Snapshot snapshot = Tracks.snapshot();
+        CharSequence[] items = makePriorityItems(snapshot);
         alert.setSingleChoiceItems(items, 0,
                 (dialog, which) -> {
-                    int pos = findByGlyph(items[which].toString());
-                    if (pos != -1) {
-                        setAutoScroll(false);
-                        getListView().smoothScrollToPositionFromTop(pos, 0);
-                    }
+                    // Scroll to the first track in the chosen priority class
+                    int pos = snapshot.classes.get(which).first;
+                    setAutoScroll(false);
+                    getListView().smoothScrollToPositionFromTop(pos, 0);
                     dialog.dismiss();
                 });
         alert.show();
@@ -1108,7 +1085,7 @@ public class MainActivity extends ListActivity implements OnClickListener,
     }
 
     private void askRewindTrack(@NonNull Track track) {
-        if (track.curMs == 0) {
+        if (track.curMs() == 0) {
             toastShort("Track is already rewound");
             return;
         }
@@ -1138,36 +1115,6 @@ public class MainActivity extends ListActivity implements OnClickListener,
                 });
     }
 
-    /*
-        +--
-        |Filesystem       1K-blocks     Used Available Use% Mounted on
-        |/dev/block/dm-37 114407404 22094120  92182212  20% /storage/emulated/0/Android/obb
-        +--
-     */
-    private static final Pattern DISK_FREE_RE = Pattern.compile(" (\\d+) +(\\d+)% ");
-
-    @NonNull
-    private String diskFree() {
-        String free = Utilities.capture("df " + Utilities.getFolder(this));
-        if (free == null) {
-            Note.w(TAG, "df command failed");
-            return "(df failed)";
-        }
-        Matcher match = DISK_FREE_RE.matcher(free);
-        if (!match.find()) {
-            Note.w(TAG, "No match: " + free);
-            return "(no match)";
-        }
-        String g = match.group(1);
-        long kb = g != null ? Long.parseLong(g) : -1;
-
-        g = match.group(2);
-        int usedPercent = g != null ? Integer.parseInt(g) : -1;
-
-        final long M = 1024 * 1024;
-        return String.format(Locale.US, "%d%% %dGB", 100 - usedPercent, (kb + M / 2) / M);
-    }
-
     private void showStatus() {
         Log.i(TAG, "showStatus...");
         StringBuilder sb = new StringBuilder();
@@ -1178,7 +1125,7 @@ public class MainActivity extends ListActivity implements OnClickListener,
         sb.append("\nDownloadable: ").append(Tracks.numDownloadable());
         sb.append("\nHours remaining: ").append(Utilities.hhmmss(Tracks.remMs()));
 
-        sb.append("\nDisk free: ").append(diskFree());
+        sb.append("\nDisk free: ").append(Storage.describeFree(this));
 
         sb.append("\nBuilt: ");
         sb.append(Utilities.timestampStr(BuildConfig.BUILD_TIME));
@@ -1310,7 +1257,7 @@ public class MainActivity extends ListActivity implements OnClickListener,
             "Delete" : "(Delete)";
         mi[TRACK_MENU_MOVE_TO_TOP] = position != 0 || ! track.isTopPriority()
             ? "Move to top" : "(Move to top)";
-        mi[TRACK_MENU_REWIND] = track.curMs != 0
+        mi[TRACK_MENU_REWIND] = track.curMs() != 0
             ? "Rewind" : "(Rewind)";
         mi[TRACK_MENU_DOWNLOAD] = ! track.downloaded
             ? "Download" : "(Download)";
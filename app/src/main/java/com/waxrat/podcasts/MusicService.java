@@ -50,6 +50,7 @@ package com.waxrat.podcasts;
 import static java.lang.Integer.max;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import android.app.NotificationChannel;
@@ -162,14 +163,14 @@ implements OnCompletionListener,
         }
         else {
             int curMs = mPlayer.getCurrentPosition();
-            if (curMs > t.durMs)
-                curMs = t.durMs;
-            t.curMs = curMs;
+            if (curMs > t.durMs())
+                curMs = t.durMs();
+            Tracks.setCurMs(t, curMs);
 
             long nowMs = System.currentTimeMillis();
             if (nowMs - mLastTcpNotifyMs >= 5 * 1000) {
                 mLastTcpNotifyMs = nowMs;
-                TcpService.broadcast(TcpService.NFY_TRACK_UPDATED, t.ident, String.valueOf(t.curMs));
+                TcpService.broadcast(TcpService.NFY_TRACK_UPDATED, t.ident, String.valueOf(t.curMs()));
             }
         }
         sendBroadcast(i);
@@ -214,7 +215,7 @@ implements OnCompletionListener,
         b.putString(MediaMetadata.METADATA_KEY_ALBUM_ARTIST, t.artist);
         b.putString(MediaMetadata.METADATA_KEY_ALBUM, t.artist);
         b.putString(MediaMetadata.METADATA_KEY_TITLE, t.title);
-        b.putLong(MediaMetadata.METADATA_KEY_DURATION, t.durMs);
+        b.putLong(MediaMetadata.METADATA_KEY_DURATION, t.durMs());
         b.putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, Tracks.getPositionOfTrack(t) + 1);
         //b.putLong(MediaMetadata.METADATA_KEY_YEAR, t.year);
         b.putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, null);
@@ -332,7 +333,7 @@ implements OnCompletionListener,
         /* Don't skip all the way to the end. The media player acts
            strangely if you do that, sometimes playing a fraction of
            a second of the beginning of the track. */
-        int end = t.durMs - 1000;
+        int end = t.durMs() - 1000;
         if (end < 0)
             end = 0;
         seekTo(end);
@@ -364,9 +365,9 @@ implements OnCompletionListener,
         }
         Note.toastShort(this, t.artist);
         if (intent != null)
-            seekMs = intent.getIntExtra("ms", t.curMs);
+            seekMs = intent.getIntExtra("ms", t.curMs());
         else
-            seekMs = t.curMs;
+            seekMs = t.curMs();
         Log.i(TAG, "play " + t + " at " + seekMs);
         tryToGetAudioFocus();
         playTrack(t);
@@ -420,7 +421,7 @@ implements OnCompletionListener,
                 if (playing() && mPlayingTrack != null)
                 {
                     TcpService.broadcast(TcpService.NFY_PLAYING, mPlayingTrack.ident,
-                            String.valueOf(mPlayingTrack.curMs));
+                            String.valueOf(mPlayingTrack.curMs()));
                 }
                 else
                 {
@@ -510,16 +511,12 @@ implements OnCompletionListener,
         if (newMs > barrierMs)
             newMs = barrierMs;
 
-        if (mPlayingTrack != null && mPlayingTrack.quiet != null) {
-            for (int q : mPlayingTrack.quiet) {
-                if (curMs < q && newMs >= q) {
-                    newMs = q;
-                    if (mQuietToast != null)
-                        mQuietToast.cancel();
-                    mQuietToast = Note.toastShort(this, "Quiet!");
-                    break;
-                }
-            }
+        int q = mPlayingTrack != null ? mPlayingTrack.quietBetween(curMs, newMs) : -1;
+        if (q != -1) {
+            newMs = q;
+            if (mQuietToast != null)
+                mQuietToast.cancel();
+            mQuietToast = Note.toastShort(this, "Quiet!");
         }
 
         seekTo(newMs);
@@ -548,7 +545,7 @@ implements OnCompletionListener,
         updateActivity();
         relaxResources(true);
         giveUpAudioFocus();
-        Tracks.writeState(this, "stop");
+        Tracks.flushState(this, "stop");
         stopSelf();
     }
 
@@ -632,7 +629,20 @@ implements OnCompletionListener,
                     .setUsage(AudioAttributes.USAGE_MEDIA)
                     .build()
             );
-            mPlayer.setDataSource(audioFile.toString());
+            GrowingAudioSource source;
+            try {
+                source = GrowingAudioSource.open(this, t);
+            }
+            catch (FileNotFoundException ex) {
+                Log.i(TAG, "Download of " + t + " just finished");
+                source = null;
+            }
+            if (source != null) {
+                Log.i(TAG, "Playing " + t + " while it downloads");
+                mPlayer.setDataSource(source);
+            }
+            else
+                mPlayer.setDataSource(audioFile.toString());
             setState(State.Preparing);
             setUpAsForeground('"' + t.title + "\" (play)");
 
@@ -644,7 +654,7 @@ implements OnCompletionListener,
         } catch (IOException ex) {
             Note.e(TAG, "IOException playing next song", ex);
         }
-        TcpService.broadcast(TcpService.NFY_PLAYING, t.ident, String.valueOf(t.curMs));
+        TcpService.broadcast(TcpService.NFY_PLAYING, t.ident, String.valueOf(t.curMs()));
     }
 
     private void setAfterTrack(MainActivity.AfterTrack afterTrack) {
@@ -664,12 +674,12 @@ implements OnCompletionListener,
         if (track == null)
             Note.w(TAG, "onCompletion: no current track");
         else {
-            int remMs = track.durMs - track.curMs;
+            int remMs = track.durMs() - track.curMs();
             spurious = remMs > UPDATE_PERIOD_MS;
             if (spurious)
                 Log.w(TAG, "Spurious completion of " + track + " with " + remMs);
             else {
-                track.curMs = track.durMs;
+                Tracks.setCurMs(track, track.durMs());
                 Tracks.writeState(this, "onCompletion");
                 TcpService.broadcast(TcpService.NFY_TRACK_FINISHED, track.ident);
             }
@@ -714,7 +724,7 @@ implements OnCompletionListener,
             return;
         }
 
-        seekMs = max(0, track.curMs - (spurious ? 0 : OVERLAP_MS));
+        seekMs = max(0, track.curMs() - (spurious ? 0 : OVERLAP_MS));
         Log.i(TAG, "Will play " + track + " at " + seekMs);
         tryToGetAudioFocus();
         playTrack(track);
@@ -903,6 +913,7 @@ implements OnCompletionListener,
         setState(State.Stopped);
         relaxResources(true);
         giveUpAudioFocus();
+        Tracks.flushState(this, "onDestroy");
     }
 
     @Override
@@ -0,0 +1,210 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/* A download into a track's .part file, which is preallocated to the whole
+   size of the track.  So the file's length says nothing about how much of it
+   we have.  That's recorded in the .partinfo file, along with the expected
+   size and the validator for If-Range, when the download stops and every
+   CHECKPOINT_MS while it runs.  A download that was killed resumes from the
+   last checkpoint. */
+final class PartialDownload implements Closeable {
+    private final static String TAG = "Podcasts.PartialDownload";
+
+    // Record how much we have at least this often
+    private final static long CHECKPOINT_MS = 5000;
+
+    @NonNull private final File file;
+    @NonNull private final File infoFile;
+    private final long size;
+    @Nullable private String validator;
+    private long have;
+    @Nullable private RandomAccessFile out;
+    private long checkpointMs;
+
+    PartialDownload(@NonNull File file, @NonNull File infoFile, long size) {
+        this.file = file;
+        this.infoFile = infoFile;
+        this.size = size;
+    }
+
+    /* Where to resume the download: how much of it the .partinfo file says we
+       have, or 0 if we can't resume.  Then validator() is for If-Range. */
+    long resumeAt() {
+        long infoSize = -1;
+        long infoHave = 0;
+        validator = null;
+        try (TagsParser p = new TagsParser(new FileInputStream(infoFile))) {
+            while (p.nextLine()) {
+                if (p.nameIs("size"))
+                    infoSize = p.longValue();
+                else if (p.nameIs("have"))
+                    infoHave = p.longValue();
+                else if (p.nameIs("validator"))
+                    validator = p.value();
+            }
+        }
+        catch (FileNotFoundException ex) {
+            return 0;
+        }
+        catch (IOException | NumberFormatException ex) {
+            Note.w(TAG, "Bad " + infoFile.getName() + ": " + ex.getMessage());
+            validator = null;
+            return 0;
+        }
+        if (validator == null || infoSize != size || infoHave <= 0 || infoHave >= size
+                || infoHave > file.length()) {
+            Log.i(TAG, "Can't resume " + file.getName() + " at " + infoHave);
+            validator = null;
+            return 0;
+        }
+        return infoHave;
+    }
+
+    @Nullable
+    String validator() {
+        return validator;
+    }
+
+    /* Start writing at `offset`, which is 0 or what resumeAt returned.
+       `validator` (null if none) is for resuming the download next time.
+       False if there isn't room for the whole file.  Where the file system
+       can't preallocate, we do without. */
+    boolean open(long offset, @Nullable String validator) throws IOException {
+        this.validator = validator;
+        have = offset;
+        checkpoint();
+        out = new RandomAccessFile(file, "rw");
+        out.getChannel().truncate(offset);
+        try {
+            Os.posix_fallocate(out.getFD(), 0, size);
+        }
+        catch (ErrnoException ex) {
+            if (ex.errno == OsConstants.ENOSPC)
+                return false;
+            Log.i(TAG, "Can't preallocate: " + ex.getMessage());
+        }
+        return true;
+    }
+
+    @NonNull
+    FileChannel channel() {
+        if (out == null)
+            throw new IllegalStateException("Not open");
+        return out.getChannel();
+    }
+
+    // How much of the file we have
+    long have() {
+        return have;
+    }
+
+    /* Receive at most `max` bytes from `src`, after what we have.  Returns
+       how many, 0 at the end of `src`. */
+    long receive(@NonNull ReadableByteChannel src, long max) throws IOException {
+        FileChannel fc = channel();
+        long count = fc.transferFrom(src, have, max);
+        have += count;
+        long nowMs = SystemClock.elapsedRealtime();
+        if (nowMs - checkpointMs >= CHECKPOINT_MS) {
+            // The data first, so the checkpoint never claims more than is on disk
+            fc.force(false);
+            checkpoint();
+        }
+        return count;
+    }
+
+    /* Record how much we have.  A download we can't validate can't be
+       resumed, so then there's no info file at all. */
+    private void checkpoint() {
+        checkpointMs = SystemClock.elapsedRealtime();
+        if (validator == null) {
+            Track.deleteFile(infoFile);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("size\t").append(size).append('\n');
+        sb.append("have\t").append(have).append('\n');
+        sb.append("validator\t").append(validator).append('\n');
+        Utilities.writeFile(infoFile, sb);
+    }
+
+    /* Record how much we have, and give back the preallocated space we
+       didn't fill.  An interrupt (ClosedByInterruptException) may already
+       have closed `out`, so that's done with a file of our own. */
+    @Override
+    public void close() {
+        if (out == null)
+            return;
+        try {
+            FileChannel fc = out.getChannel();
+            if (fc.isOpen())
+                fc.force(false);
+        }
+        catch (IOException ex) {
+            Note.w(TAG, "Can't sync " + file.getName() + ": " + ex.getMessage());
+        }
+        checkpoint();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() > have)
+                raf.setLength(have);
+        }
+        catch (IOException ex) {
+            Note.e(TAG, "Can't trim " + file, ex);
+        }
+        try {
+            out.close();
+        }
+        catch (IOException ex) {
+            Note.e(TAG, "Exception closing " + file, ex);
+        }
+        out = null;
+    }
+}
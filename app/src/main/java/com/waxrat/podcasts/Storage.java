@@ -0,0 +1,193 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import android.content.Context;
+import android.os.StatFs;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Keeps the audio in Utilities.getFolder within a byte budget, and the volume
+   from filling up.  Before a download starts, it reserves the room the file
+   will need, evicting other audio to make that room if need be. */
+final class Storage {
+    private final static String TAG = "Podcasts.Storage";
+
+    // The most audio (bytes) to keep in the folder, or 0 for no limit but the disk
+    static long mBudgetBytes = 0;
+
+    // Always leave at least this much of the volume free
+    static final long RESERVE_BYTES = 256L * 1024 * 1024;
+
+    // The full size of each download in progress, by ident.  describeFree reads it without the lock.
+    private static final Map<String, Long> reserved = new ConcurrentHashMap<>();
+
+    private Storage() {
+    }
+
+    @NonNull
+    private static StatFs statFs(@NonNull Context context) {
+        return new StatFs(Utilities.getFolder(context).getPath());
+    }
+
+    /* Bytes the downloads in progress have yet to write, which the volume's
+       free space doesn't know about */
+    private static long reservedUnwritten(@NonNull Context context) {
+        long n = 0;
+        for (Map.Entry<String, Long> e : reserved.entrySet()) {
+            File part = new File(Utilities.getFolder(context), e.getKey() + ".part");
+            n += Math.max(0, e.getValue() - part.length());
+        }
+        return n;
+    }
+
+    /* The audio (and partial audio) in the folder, counting each download
+       in progress at its full size */
+    private static long used(@NonNull Context context) {
+        long n = 0;
+        for (Track t : Tracks.snapshot().tracks) {
+            Long r = reserved.get(t.ident);
+            if (r != null)
+                n += r;
+            else
+                n += t.getAudioFile(context).length() + t.getPartialFile(context).length();
+        }
+        return n;
+    }
+
+    /* How many more bytes we could write, or a negative number if we're
+       already over */
+    private static long room(@NonNull Context context) {
+        long room = statFs(context).getAvailableBytes() - RESERVE_BYTES - reservedUnwritten(context);
+        if (mBudgetBytes > 0)
+            room = Math.min(room, mBudgetBytes - used(context));
+        return room;
+    }
+
+    /* The tracks we may evict to make room for `track`, the first to go first.
+       Finished tracks go first, those pulled from their feeds longest ago
+       first.  Then, only if there's a budget, the unfinished tracks of a
+       lower priority class than `track` that we expect to play after it, the
+       last to be played first.  The server forgets a track once we have
+       downloaded it, so evicting an unfinished track deletes it; without a
+       budget, a full disk isn't reason enough.  Never the selected track, a
+       track marked KEEP_EMOJI, or one being downloaded. */
+    @NonNull
+    private static List<Track> evictable(@NonNull Track track) {
+        Tracks.Snapshot s = Tracks.snapshot();
+        Track selected = s.track(s.position);
+        List<Track> finished = new ArrayList<>();
+        List<Track> later = new ArrayList<>();
+        boolean after = false;
+        for (Tracks.Due d : Tracks.playOrder(MainActivity.mAfterTrack)) {
+            Track t = d.track;
+            if (t == track) {
+                after = true;
+                continue;
+            }
+            if (!t.downloaded || t == selected || Tracks.isKept(t) || reserved.containsKey(t.ident))
+                continue;
+            if (Tracks.isFinishedDeletable(t))
+                finished.add(t);
+            else if (mBudgetBytes > 0 && after && !t.isFinished()
+                    && t.priorityClassChar() > track.priorityClassChar())
+                later.add(0, t);
+        }
+        finished.sort(Comparator.comparingLong(Track::when));
+        finished.addAll(later);
+        return finished;
+    }
+
+    /* Reserve room for `track`'s audio, evicting other audio if need be.
+       Return false, evicting nothing, if even that wouldn't make enough room.
+       Call `release` once the download is done. */
+    static synchronized boolean makeRoom(@NonNull Context context, @NonNull Track track) {
+        File part = track.getPartialFile(context);
+        long need = track.size() - part.length();
+        long room = room(context);
+        Log.i(TAG, "makeRoom " + track.ident + ": need " + need + ", room " + room);
+        if (room < need) {
+            List<Track> evict = new ArrayList<>();
+            long freed = 0;
+            for (Track t : evictable(track)) {
+                if (room + freed >= need)
+                    break;
+                evict.add(t);
+                freed += t.getAudioFile(context).length();
+            }
+            if (room + freed < need) {
+                Note.w(TAG, "No room for " + track.ident + ": need " + mb(need) + ", have " + mb(room + freed));
+                return false;
+            }
+            for (Track t : evict) {
+                Note.w(TAG, "Evict " + t.ident + (t.isFinished() ? " (finished)" : " (unfinished)"));
+                t.deleteFiles(context);
+            }
+            Tracks.restore(context, true);
+        }
+        reserved.put(track.ident, track.size());
+        return true;
+    }
+
+    static synchronized void release(@NonNull String ident) {
+        reserved.remove(ident);
+    }
+
+    @NonNull
+    private static String mb(long bytes) {
+        return String.format(Locale.US, "%.1fMB", bytes / (1024.0 * 1024));
+    }
+
+    /* For the status display, e.g., "80% 92GB" */
+    @NonNull
+    static String describeFree(@NonNull Context context) {
+        StatFs fs = statFs(context);
+        long total = fs.getTotalBytes();
+        long avail = fs.getAvailableBytes();
+        if (total <= 0)
+            return "(unknown)";
+        final long G = 1024L * 1024 * 1024;
+        String s = String.format(Locale.US, "%d%% %dGB", 100 * avail / total, (avail + G / 2) / G);
+        if (mBudgetBytes > 0)
+            s += String.format(Locale.US, ", budget %s of %s", mb(used(context)), mb(mBudgetBytes));
+        return s;
+    }
+}
@@ -7,7 +7,14 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /* Represent the contents of a .tag file */
 class Tags {
@@ -20,25 +27,41 @@ class Tags {
     @NonNull String artist;          // "Here+Now"
     long size;                       // audio file size (bytes)
     long when;                       // when the track was pulled from the feed (POSIX time, seconds)
-    @Nullable Integer[] quiet;       // offsets of periods of quiet (milliseconds)
+    @Nullable int[] quiet;           // offsets of periods of quiet (milliseconds), sorted
     @Nullable String emoji;          // "🚀"
     @Nullable String feed_url;
     @Nullable String track_url;
+    @Nullable String sha256;         // SHA-256 of the audio file (hex), if pod-feed gave one
 
     @Nullable
     static Tags fromFile(@NonNull Context context, @NonNull String ident) {
         File file = Track.getTagFile(context, ident);
-        ArrayList<String> lines = Utilities.readFile(file);
-        if (lines == null)
+        Tags t;
+        try (TagsParser p = new TagsParser(new FileInputStream(file))) {
+            if (!p.nextLine()) {
+                Note.w(TAG, "Empty file: " + file);
+                return null;
+            }
+            t = new Tags(p);
+        }
+        catch (FileNotFoundException ex) {
+            Note.w(TAG, "No file: " + file);
+            return null;
+        }
+        catch (IOException ex) {
+            Note.e(TAG, "I/O reading " + file, ex);
             return null;
-        Tags t = new Tags(lines);
+        }
         if (!t.ident.equals(ident))
             // The "id" field in the file is supposed to be the same as `ident`
             Note.w(TAG, "Ident mismatch " + t.ident + " != " + ident);
         return t;
     }
 
-    Tags(@NonNull ArrayList<String> lines) {
+    /* Read a .tag record starting with the parser's current line.  The record
+       ends at a blank line, the end of the input, or the "OK" line that ends
+       the poll response (which is left for the caller to read). */
+    Tags(@NonNull TagsParser p) throws IOException {
         String self_ident = null;
         String self_priority = null;
         this.durMs = -1;
@@ -46,54 +69,45 @@ class Tags {
         String self_artist = null;
         this.size = -1;
         this.when = -1;
-        for (String line: lines) {
-            int i = line.indexOf('\t');
-            if (i == -1) {
-                Note.w(TAG, "No tab in tag line '" + line + '\'');
-                continue;
+        do {
+            if (p.isBlank())
+                break;
+            if (p.startsWith("OK\t")) {
+                p.unread();
+                break;
             }
-            String name = line.substring(0, i);
-            String value = line.substring(i + 1);
-            switch (name) {
-                case "id":
-                    self_ident = value;
-                    break;
-                case "prio":    // TODO: obsolete
-                case "priority":
-                    self_priority = value;
-                    break;
-                case "durms":
-                    this.durMs = Integer.parseInt(value);
-                    break;
-                case "title":
-                    self_title = value;
-                    break;
-                case "artist":
-                    self_artist = value;
-                    break;
-                case "size":
-                    this.size = Long.parseLong(value);
-                    break;
-                case "when":
-                    this.when = Long.parseLong(value);
-                    break;
-                case "quiet":
-                    this.quiet = Utilities.integersFromString(value);
-                    break;
-                case "emoji":
-                    this.emoji = value;
-                    break;
-                case "feed_url":
-                    this.feed_url = value;
-                    break;
-                case "track_url":
-                    this.track_url = value;
-                    break;
-                default:
-                    Note.w(TAG, "Unknown tag '" + name + "' = '" + value + '\'');
-                    break;
+            if (!p.hasTab())
+                Note.w(TAG, "No tab in tag line '" + p.line() + '\'');
+            else if (p.nameIs("id"))
+                self_ident = p.value();
+            else if (p.nameIs("priority") || p.nameIs("prio"))   // TODO: "prio" is obsolete
+                self_priority = p.value();
+            else if (p.nameIs("durms"))
+                this.durMs = p.intValue();
+            else if (p.nameIs("title"))
+                self_title = p.value();
+            else if (p.nameIs("artist"))
+                self_artist = p.value();
+            else if (p.nameIs("size"))
+                this.size = p.longValue();
+            else if (p.nameIs("when"))
+                this.when = p.longValue();
+            else if (p.nameIs("quiet")) {
+                this.quiet = p.intsValue();
+                if (this.quiet != null)
+                    Arrays.sort(this.quiet);
             }
-        }
+            else if (p.nameIs("emoji"))
+                this.emoji = p.value();
+            else if (p.nameIs("feed_url"))
+                this.feed_url = p.value();
+            else if (p.nameIs("track_url"))
+                this.track_url = p.value();
+            else if (p.nameIs("sha256"))
+                this.sha256 = p.value();
+            else
+                Note.w(TAG, "Unknown tag '" + p.name() + "' = '" + p.value() + '\'');
+        } while (p.nextLine());
 
         if (self_ident == null)
             throw new RuntimeException("No 'id' field");
@@ -116,13 +130,48 @@ class Tags {
         this.artist = self_artist;
     }
 
-    final void writeFile(@NonNull Context context, boolean overwrite) {
-        File file = Track.getTagFile(context, ident);
-        if (!overwrite && file.exists()) {
-            Log.i(TAG, "Not overwriting " + file.getName());
-            return;
+    // The tags of a track we already know about
+    Tags(@NonNull Track t) {
+        this.ident = t.ident;
+        this.priority = t.priority;
+        this.durMs = t.durMs();
+        this.title = t.title;
+        this.artist = t.artist;
+        this.size = t.size();
+        this.when = t.when();
+        this.quiet = t.quiet;
+        this.emoji = t.emoji;
+        this.feed_url = t.feed_url;
+        this.track_url = t.track_url;
+        this.sha256 = t.sha256;
+    }
+
+    /* Rewrite the .tag files of `tracks` from the Track objects, without
+       reading the files first.  The files are replaced all together or,
+       if any of them can't be written, not at all.  Returns false on failure. */
+    static boolean writeFiles(@NonNull Context context, @NonNull List<Track> tracks) {
+        Map<File, byte[]> files = new LinkedHashMap<>();
+        for (Track t : tracks)
+            files.put(t.getTagFile(context), new Tags(t).toStringBuilder().toString().getBytes(StandardCharsets.UTF_8));
+        return Utilities.writeFiles(files, Utilities.Sync.DATA);
+    }
+
+    /* Write the .tag files of `tags` that we don't have yet, all together or,
+       as for writeFiles, not at all.  Returns false on failure. */
+    static boolean writeNewFiles(@NonNull Context context, @NonNull List<Tags> tags) {
+        Map<File, byte[]> files = new LinkedHashMap<>();
+        for (Tags t : tags) {
+            File file = Track.getTagFile(context, t.ident);
+            if (file.exists())
+                Log.i(TAG, "Not overwriting " + file.getName());
+            else
+                files.put(file, t.toStringBuilder().toString().getBytes(StandardCharsets.UTF_8));
         }
+        return files.isEmpty() || Utilities.writeFiles(files, Utilities.Sync.DATA);
+    }
 
+    @NonNull
+    private StringBuilder toStringBuilder() {
         StringBuilder sb = new StringBuilder();
 
         sb.append("id\t");
@@ -155,7 +204,7 @@ class Tags {
 
         if (quiet != null) {
             sb.append("quiet\t");
-            Utilities.integersToString(quiet, sb);
+            Utilities.intsToString(quiet, sb);
             sb.append('\n');
         }
 
@@ -177,39 +226,13 @@ class Tags {
             sb.append('\n');
         }
 
-        Utilities.writeFile(file, sb);
-    }
-
-    public static void setArtist(@NonNull Context context, @NonNull String ident, @NonNull String artist) {
-        Tags tags = Tags.fromFile(context, ident);
-        if (tags != null) {
-            tags.artist = artist;
-            tags.writeFile(context, true);
-        }
-    }
-
-    public static void setEmoji(@NonNull Context context, @NonNull String ident, @NonNull String emoji) {
-        Tags tags = Tags.fromFile(context, ident);
-        if (tags != null) {
-            tags.emoji = emoji;
-            tags.writeFile(context, true);
-        }
-    }
-
-    public static void setPriority(@NonNull Context context, @NonNull String ident, @NonNull String priority) {
-        Tags tags = Tags.fromFile(context, ident);
-        if (tags != null) {
-            tags.priority = priority;
-            tags.writeFile(context, true);
+        if (sha256 != null) {
+            sb.append("sha256\t");
+            sb.append(sha256);
+            sb.append('\n');
         }
-    }
 
-    public static void setTitle(@NonNull Context context, @NonNull String ident, @NonNull String title) {
-        Tags tags = Tags.fromFile(context, ident);
-        if (tags != null) {
-            tags.title = title;
-            tags.writeFile(context, true);
-        }
+        return sb;
     }
 
     @NonNull
@@ -0,0 +1,229 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* Reads the lines of .tag files ("name <tab> value") from a stream of UTF-8.
+   The same parser reads a single .tag file and the poll response from the
+   server, which is many .tag files separated by blank lines.
+
+   The bytes are decoded once, into a buffer that the parser scans for tabs
+   and newlines.  Lines aren't turned into Strings; numbers are parsed where
+   they sit in the buffer, and only text values become Strings. */
+final class TagsParser implements Closeable {
+    private final static String TAG = "Podcasts.TagsParser";
+
+    @NonNull private final Reader in;
+    @NonNull private char[] buf = new char[8192];
+    private int len;            // buf[0, len) holds decoded input
+    private int start, end;     // the current line is buf[start, end), without the newline
+    private int tab;            // the first tab in the current line, or -1
+    private int next;           // where the line after the current one starts
+    private boolean eof;
+    private boolean again;      // unread was called
+
+    TagsParser(@NonNull InputStream in) {
+        this.in = new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    /* Advance to the next line.  Returns false at the end of the input. */
+    boolean nextLine() throws IOException {
+        if (again) {
+            again = false;
+            return true;
+        }
+        int i = next;
+        for (;;) {
+            while (i < len && buf[i] != '\n')
+                ++i;
+            if (i < len) {
+                setLine(next, i, i + 1);
+                return true;
+            }
+            if (eof) {
+                if (next == len)
+                    return false;
+                setLine(next, len, len);   // last line has no newline
+                return true;
+            }
+            // Need more input.  Move the partial line to the front of buf,
+            // growing buf if the line doesn't fit
+            int partial = len - next;
+            if (partial == buf.length)
+                buf = Arrays.copyOf(buf, 2 * buf.length);
+            else
+                System.arraycopy(buf, next, buf, 0, partial);
+            i -= next;
+            len = partial;
+            next = 0;
+            int n = in.read(buf, len, buf.length - len);
+            if (n == -1)
+                eof = true;
+            else
+                len += n;
+        }
+    }
+
+    private void setLine(int start, int end, int next) {
+        if (end > start && buf[end - 1] == '\r')
+            --end;
+        this.start = start;
+        this.end = end;
+        this.next = next;
+        tab = -1;
+        for (int i = start; i < end; ++i)
+            if (buf[i] == '\t') {
+                tab = i;
+                break;
+            }
+    }
+
+    /* Make the next call to nextLine return the current line again */
+    void unread() {
+        again = true;
+    }
+
+    boolean isBlank() {
+        return start == end;
+    }
+
+    boolean hasTab() {
+        return tab != -1;
+    }
+
+    boolean startsWith(@NonNull String s) {
+        int n = s.length();
+        if (end - start < n)
+            return false;
+        for (int i = 0; i < n; ++i)
+            if (buf[start + i] != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    /* True if the current line's name (the part before the tab) is `name` */
+    boolean nameIs(@NonNull String name) {
+        return tab - start == name.length() && startsWith(name);
+    }
+
+    @NonNull
+    String name() {
+        return new String(buf, start, tab - start);
+    }
+
+    @NonNull
+    String value() {
+        return new String(buf, tab + 1, end - tab - 1);
+    }
+
+    @NonNull
+    String line() {
+        return new String(buf, start, end - start);
+    }
+
+    int intValue() {
+        long v = longValue();
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+            throw new NumberFormatException("Out of range: " + line());
+        return (int) v;
+    }
+
+    long longValue() {
+        return parseLong(tab + 1, end);
+    }
+
+    /* The value as space-separated integers, or null if there are none or
+       they're not all integers */
+    int[] intsValue() {
+        int count = 0;
+        for (int i = tab + 1; i < end; ++i)
+            if (buf[i] != ' ' && (i == tab + 1 || buf[i - 1] == ' '))
+                ++count;
+        if (count == 0)
+            return null;
+        int[] result = new int[count];
+        int n = 0;
+        for (int i = tab + 1; i < end; ) {
+            if (buf[i] == ' ') {
+                ++i;
+                continue;
+            }
+            int j = i;
+            while (j < end && buf[j] != ' ')
+                ++j;
+            long v;
+            try {
+                v = parseLong(i, j);
+            }
+            catch (NumberFormatException ex) {
+                Note.e(TAG, "Invalid integers: " + line());
+                return null;
+            }
+            if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+                Note.e(TAG, "Out of range: " + line());
+                return null;
+            }
+            result[n++] = (int) v;
+            i = j;
+        }
+        return result;
+    }
+
+    private long parseLong(int from, int to) {
+        boolean negative = from < to && buf[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to || to - i > 18)
+            throw new NumberFormatException("Not a number: " + line());
+        long v = 0;
+        for (; i < to; ++i) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9)
+                throw new NumberFormatException("Not a number: " + line());
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -451,7 +451,7 @@ public class TcpService extends Service {
                     /* If this track is "done", start from the beginning.
                        Otherwise, start from where we left off last but rewound a little. */
                     if (!t.isFinished()) {
-                        curMs = t.curMs - MusicService.OVERLAP_MS;
+                        curMs = t.curMs() - MusicService.OVERLAP_MS;
                         if (curMs < 0)
                             curMs = 0;
                     }
@@ -37,6 +37,8 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.File;
+import java.lang.ref.Reference;
+import java.util.Arrays;
 
 final class Track {
     private final static String TAG = "Podcasts.Track";
@@ -47,33 +49,32 @@ final class Track {
     @NonNull String title;
     @NonNull String artist;
     @NonNull String priority;
-    long size;
-    int curMs;
-    int durMs;
-    long when;
+    final int slot;        // Where curMs, durMs, size and when live in TrackTable
     boolean downloaded;    // True if we have the .mp3 audio file for this track
     final int skipForwardMs, skipBackwardMs;
     @Nullable String emoji;
     @Nullable String feed_url;
     @Nullable String track_url;
-    @Nullable Integer[] quiet;
+    @Nullable String sha256; // Expected SHA-256 of the audio file (hex), if known
+    @Nullable int[] quiet; // Offsets of quiet periods (milliseconds), sorted
+    int index;             // Where this track is in Tracks.tracks, maintained by Tracks
+    long tagModified;      // Last-modified time of the .tag file the metadata came from
 
     Track(@NonNull String ident) {
         this.ident = ident;
         this.title = ident;
         this.artist = "";
         this.priority = "";
-        this.size = 0;
-        this.curMs = 0;
-        this.durMs = 0;
-        this.when = 0;
+        this.slot = TrackTable.allocate(this);
         this.downloaded = false;
         this.skipForwardMs = 30000;
         this.skipBackwardMs = 10000;
         this.emoji = null;
         this.feed_url = null;
         this.track_url = null;
+        this.sha256 = null;
         this.quiet = null;
+        this.index = -1;
     }
 
     // The audio file name relative to Tracks.FOLDER
@@ -94,6 +95,18 @@ final class Track {
         return new File(folder, audioFileName());
     }
 
+    // A partial download of the audio file, kept so that the download can resume
+    @NonNull
+    File getPartialFile(@NonNull Context context) {
+        return new File(Utilities.getFolder(context), ident + ".part");
+    }
+
+    // The expected size and validator of the partial download
+    @NonNull
+    File getPartialInfoFile(@NonNull Context context) {
+        return new File(Utilities.getFolder(context), ident + ".partinfo");
+    }
+
     @NonNull
     File getTagFile(@NonNull Context context) {
         return getTagFile(context, ident);
@@ -108,6 +121,8 @@ final class Track {
     /* Delete the files of this track */
     void deleteFiles(@NonNull Context context) {
         deleteFile(getAudioFile(context));
+        deleteFile(getPartialFile(context));
+        deleteFile(getPartialInfoFile(context));
         deleteFile(getTagFile(context));
         TcpService.broadcast(TcpService.NFY_TRACK_DELETED, ident);
     }
@@ -138,8 +153,66 @@ final class Track {
         return priority.charAt(0);
     }
 
+    int curMs() {
+        return TrackTable.curMs(slot);
+    }
+
+    /* TrackTable gives our slot to another track once we're unreachable, which
+       can happen partway through a call of ours.  So a store makes sure we're
+       still reachable until it's done.  A load needn't: once we're
+       unreachable, whatever it returns is for no one. */
+
+    // Use Tracks.setCurMs once the track is in the list
+    void setCurMs(int curMs) {
+        TrackTable.setCurMs(slot, curMs);
+        Reference.reachabilityFence(this);
+    }
+
+    int durMs() {
+        return TrackTable.durMs(slot);
+    }
+
+    void setDurMs(int durMs) {
+        TrackTable.setDurMs(slot, durMs);
+        Reference.reachabilityFence(this);
+    }
+
+    long size() {
+        return TrackTable.size(slot);
+    }
+
+    void setSize(long size) {
+        TrackTable.setSize(slot, size);
+        Reference.reachabilityFence(this);
+    }
+
+    long when() {
+        return TrackTable.when(slot);
+    }
+
+    void setWhen(long when) {
+        TrackTable.setWhen(slot, when);
+        Reference.reachabilityFence(this);
+    }
+
+    // The first quiet period at or after `ms`, or -1 if there's none
+    int nextQuietAtOrAfter(int ms) {
+        if (quiet == null)
+            return -1;
+        int i = Arrays.binarySearch(quiet, ms);
+        if (i < 0)
+            i = -i - 1;
+        return i < quiet.length ? quiet[i] : -1;
+    }
+
+    // The first quiet period after `fromMs` and not after `toMs`, or -1 if there's none
+    int quietBetween(int fromMs, int toMs) {
+        int q = fromMs == Integer.MAX_VALUE ? -1 : nextQuietAtOrAfter(fromMs + 1);
+        return q != -1 && q <= toMs ? q : -1;
+    }
+
     int remMs() {
-        return durMs - curMs;
+        return durMs() - curMs();
     }
 
     boolean isFinished() {
@@ -153,6 +226,6 @@ final class Track {
     @NonNull
     @Override
     public String toString() {
-        return ident + '@' + curMs + '/' + durMs;
+        return ident + '@' + curMs() + '/' + durMs();
     }
 }
@@ -0,0 +1,166 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Primitive storage for the Track fields that change during playback or are
+   read on every row render: parallel arrays of curMs, durMs, size and when,
+   addressed by Track.slot.
+
+   Stores are lazySet (release) and loads are volatile (acquire), so the UI and
+   TcpService threads see the position MusicService's tick handler last stored
+   without taking a lock and without allocating.
+
+   The arrays are allocated in fixed-size chunks that are never copied, so a
+   store can't be lost to a concurrent grow.  A slot is reused only once its
+   Track is unreachable: a deleted Track may still be referenced from an old
+   snapshot or list adapter, and it must not start reporting some other
+   track's position.  Each slot's Track has a PhantomReference, and allocate
+   collects the slots of those the GC has enqueued.  So the table stays about
+   as big as the most tracks alive at once, however many Catalog reads and
+   .tag imports create new ones. */
+final class TrackTable {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final class Chunk {
+        final AtomicIntegerArray curMs = new AtomicIntegerArray(CHUNK_SIZE);
+        final AtomicIntegerArray durMs = new AtomicIntegerArray(CHUNK_SIZE);
+        final AtomicLongArray size = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicLongArray when = new AtomicLongArray(CHUNK_SIZE);
+    }
+
+    private static final class Owner extends PhantomReference<Track> {
+        final int slot;
+
+        Owner(@NonNull Track track, int slot) {
+            super(track, unreachable);
+            this.slot = slot;
+        }
+    }
+
+    private static volatile Chunk[] chunks = new Chunk[0];
+
+    // All guarded by TrackTable.class
+    private static int numSlots;
+    private static final ReferenceQueue<Track> unreachable = new ReferenceQueue<>();
+    private static final Set<Owner> owners = new HashSet<>();   // So the GC doesn't drop them
+    private static int[] free = new int[64];
+    private static int numFree;
+
+    private TrackTable() {
+    }
+
+    // A slot for `track`, with all its fields 0
+    static synchronized int allocate(@NonNull Track track) {
+        for (Owner o; (o = (Owner) unreachable.poll()) != null; ) {
+            owners.remove(o);
+            if (numFree == free.length)
+                free = Arrays.copyOf(free, 2 * numFree);
+            free[numFree++] = o.slot;
+        }
+        int slot;
+        if (numFree != 0) {
+            slot = free[--numFree];
+            Chunk c = chunk(slot);
+            int i = slot & CHUNK_MASK;
+            c.curMs.set(i, 0);
+            c.durMs.set(i, 0);
+            c.size.set(i, 0);
+            c.when.set(i, 0);
+        }
+        else {
+            slot = numSlots++;
+            Chunk[] cs = chunks;
+            if ((slot >> CHUNK_BITS) == cs.length) {
+                cs = Arrays.copyOf(cs, cs.length + 1);
+                cs[cs.length - 1] = new Chunk();
+                chunks = cs;
+            }
+        }
+        owners.add(new Owner(track, slot));
+        return slot;
+    }
+
+    // How many slots the table has, used or not
+    @VisibleForTesting
+    static synchronized int capacity() {
+        return numSlots;
+    }
+
+    private static Chunk chunk(int slot) {
+        return chunks[slot >> CHUNK_BITS];
+    }
+
+    static int curMs(int slot) {
+        return chunk(slot).curMs.get(slot & CHUNK_MASK);
+    }
+
+    static void setCurMs(int slot, int curMs) {
+        chunk(slot).curMs.lazySet(slot & CHUNK_MASK, curMs);
+    }
+
+    static int durMs(int slot) {
+        return chunk(slot).durMs.get(slot & CHUNK_MASK);
+    }
+
+    static void setDurMs(int slot, int durMs) {
+        chunk(slot).durMs.lazySet(slot & CHUNK_MASK, durMs);
+    }
+
+    static long size(int slot) {
+        return chunk(slot).size.get(slot & CHUNK_MASK);
+    }
+
+    static void setSize(int slot, long size) {
+        chunk(slot).size.lazySet(slot & CHUNK_MASK, size);
+    }
+
+    static long when(int slot) {
+        return chunk(slot).when.get(slot & CHUNK_MASK);
+    }
+
+    static void setWhen(int slot, long when) {
+        chunk(slot).when.lazySet(slot & CHUNK_MASK, when);
+    }
+}
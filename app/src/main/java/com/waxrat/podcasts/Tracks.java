@@ -34,131 +34,470 @@ package com.waxrat.podcasts;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 class Tracks {
     private final static String TAG = "Podcasts.Tracks";
 
     private final static String STATE_FILE_NAME = "_state.txt";
+    private final static String JOURNAL_FILE_NAME = "_state.log";
 
-    /** The last modification time of the tracks folder. */
-    private static long folderLastMod = -1;
+    /* How many threads importTagFiles uses, at most */
+    private final static int LOADER_THREADS = 4;
+
+    /* How often importTagFiles publishes the tracks it has so far */
+    private final static int INTERIM_PUBLISH_MS = 250;
+
+    /* How carefully _state.txt and _state.log are written */
+    private final static Utilities.Sync STATE_SYNC = Utilities.Sync.FULL;
+
+    /* Append this many records to the journal before compacting it into _state.txt */
+    private final static int JOURNAL_LIMIT = 500;
 
     /** All the tracks we currently know about */
     private static final List<Track> tracks = new ArrayList<>();
 
+    /** The same tracks as `tracks`, keyed by ident */
+    private static final Map<String, Track> trackByIdent = new HashMap<>();
+
+    /** Track.index is accurate for tracks[0] up to but not including tracks[indexedTo].
+        Indexes at or beyond that may be stale and get refreshed on demand. */
+    private static int indexedTo = 0;
+
     static final String ACTION_TRACKS_LIST_CHANGED = "com.waxrat.podcasts.intent.TRACKS_LIST_CHANGED";
 
     /** The track currently selected, or -1 if we haven't read _state.txt yet */
     private static int position = -1;
 
-    static synchronized boolean haveTracks() {
+    /* An immutable copy of `tracks` and `position` as of the last change.
+       Changes to the list are made while holding the Tracks.class monitor
+       and then published here, so readers (the UI thread, TcpService
+       clients, MusicService) can look at the tracks without locking.  The
+       Track objects themselves are shared, not copied. */
+    static final class Snapshot {
+        final long version;
+        @NonNull final List<Track> tracks;
+        final int position;
+        @NonNull final RemTree remTree;
+        @NonNull final List<PriorityClass> classes;
+
+        Snapshot(long version, @NonNull List<Track> tracks, int position,
+                 @NonNull RemTree remTree, @NonNull List<PriorityClass> classes) {
+            this.version = version;
+            this.tracks = tracks;
+            this.position = position;
+            this.remTree = remTree;
+            this.classes = classes;
+        }
+
+        @Nullable
+        Track track(int pos) {
+            if (pos < 0 || pos >= tracks.size())
+                return null;
+            return tracks.get(pos);
+        }
+
+        // Where `t` is in this snapshot, or -1.  Doesn't lock, so it may
+        // have to search
+        int positionOf(@NonNull Track t) {
+            if (position >= 0 && position < tracks.size() && t == tracks.get(position))
+                return position;
+            int i = t.index;
+            if (i >= 0 && i < tracks.size() && t == tracks.get(i))
+                return i;
+            return tracks.indexOf(t);
+        }
+
+        // The tracks in this priority class (see Track.priorityClassChar), or null
+        @Nullable
+        PriorityClass findClass(int classChar) {
+            for (PriorityClass pc : classes)
+                if (pc.classChar == classChar)
+                    return pc;
+            return null;
+        }
+    }
+
+    /* Remaining time (Track.remMs) of the tracks in a snapshot, as a Fenwick
+       tree so that the total for any range of positions takes O(log n).
+       This is the one part of a snapshot that changes after it's published:
+       setCurMs updates it on every playback tick without taking the lock.
+       The cells are atomic, so no update is lost, but a reader may see a
+       total that's off by an update in progress. */
+    static final class RemTree {
+        private final AtomicIntegerArray tree;  // tree[i] covers positions i - (i & -i) up to i - 1
+        private final AtomicIntegerArray remMs; // Each position's remaining time as counted in `tree`
+
+        RemTree(@NonNull List<Track> list) {
+            int n = list.size();
+            int[] t = new int[n + 1];
+            int[] r = new int[n];
+            for (int i = 1; i <= n; ++i) {
+                r[i - 1] = list.get(i - 1).remMs();
+                t[i] += r[i - 1];
+                int parent = i + (i & -i);
+                if (parent <= n)
+                    t[parent] += t[i];
+            }
+            tree = new AtomicIntegerArray(t);
+            remMs = new AtomicIntegerArray(r);
+        }
+
+        // The track at `pos` now has `ms` remaining
+        void set(int pos, int ms) {
+            int deltaMs = ms - remMs.getAndSet(pos, ms);
+            if (deltaMs == 0)
+                return;
+            for (int i = pos + 1; i < tree.length(); i += i & -i)
+                tree.addAndGet(i, deltaMs);
+        }
+
+        // Remaining time of the tracks at positions before `end`
+        int sumBefore(int end) {
+            int ms = 0;
+            for (int i = end; i > 0; i -= i & -i)
+                ms += tree.get(i);
+            return ms;
+        }
+
+        // Remaining time of the tracks at positions `from` up to but not including `to`
+        int sum(int from, int to) {
+            return sumBefore(to) - sumBefore(from);
+        }
+
+        int total() {
+            return sumBefore(tree.length() - 1);
+        }
+    }
+
+    /* The tracks of one priority class.  Since `tracks` is sorted by
+       priority, they're all together: positions `first` up to but not
+       including `first + count`. */
+    static final class PriorityClass {
+        final int classChar;    // Track.priorityClassChar()
+        final int first;
+        final int count;
+        @NonNull private final List<Track> tracks;
+        @NonNull private final RemTree remTree;
+
+        PriorityClass(int classChar, int first, int count, @NonNull List<Track> tracks,
+                      @NonNull RemTree remTree) {
+            this.classChar = classChar;
+            this.first = first;
+            this.count = count;
+            this.tracks = tracks;
+            this.remTree = remTree;
+        }
+
+        int remMs() {
+            return remTree.sum(first, first + count);
+        }
+
+        int numDownloadable() {
+            int num = 0;
+            for (int i = first; i < first + count; ++i)
+                if (!tracks.get(i).downloaded)
+                    ++num;
+            return num;
+        }
+
+        int numFinished() {
+            int num = 0;
+            for (int i = first; i < first + count; ++i)
+                if (tracks.get(i).isFinished())
+                    ++num;
+            return num;
+        }
+    }
+
+    // Divide the (sorted) list into runs of the same priority class
+    @NonNull
+    private static List<PriorityClass> findClasses(@NonNull List<Track> list,
+                                                   @NonNull RemTree remTree) {
+        List<PriorityClass> classes = new ArrayList<>();
+        int n = list.size();
+        int first = 0;
+        for (int i = 1; i <= n; ++i) {
+            int pcc = list.get(first).priorityClassChar();
+            if (i == n || list.get(i).priorityClassChar() != pcc) {
+                classes.add(new PriorityClass(pcc, first, i - first, list, remTree));
+                first = i;
+            }
+        }
+        return Collections.unmodifiableList(classes);
+    }
+
+    private static final AtomicReference<Snapshot> snapshot =
+            new AtomicReference<>(new Snapshot(0, Collections.emptyList(), -1,
+                                               new RemTree(Collections.emptyList()),
+                                               Collections.emptyList()));
+
+    @NonNull
+    static Snapshot snapshot() {
+        return snapshot.get();
+    }
+
+    // Publish the current `tracks` and `position` for readers.  If only
+    // `position` changed, the previous copy of the list is reused.
+    private static void publish(boolean listChanged) {
+        Snapshot old = snapshot.get();
+        if (!listChanged && old.position == position)
+            return;
+        if (!listChanged) {
+            snapshot.set(new Snapshot(old.version + 1, old.tracks, position, old.remTree,
+                                      old.classes));
+            return;
+        }
+        publish(new ArrayList<>(tracks), position);
+    }
+
+    // Publish `copy` (which nothing else may change) as the list of tracks
+    private static void publish(@NonNull List<Track> copy, int pos) {
+        Snapshot old = snapshot.get();
+        int changes = positionChanges.get();
+        List<Track> list = Collections.unmodifiableList(copy);
+        RemTree remTree = new RemTree(list);
+        snapshot.set(new Snapshot(old.version + 1, list, pos, remTree,
+                                  findClasses(list, remTree)));
+        // A setCurMs that ran while we were building may have seen the old
+        // snapshot, and the new tree may have missed it
+        if (positionChanges.get() != changes)
+            for (int i = 0; i < list.size(); ++i)
+                remTree.set(i, list.get(i).remMs());
+    }
+
+    /** Counts setCurMs calls, so publish can tell if one raced it */
+    private static final AtomicInteger positionChanges = new AtomicInteger();
+
+    static boolean haveTracks() {
         // True if we have already loaded _state.txt and .tag files into `tracks`
-        return position != -1;
+        return snapshot().position != -1;
     }
 
-    static synchronized int getPositionOfTrack(@NonNull Track t)
+    static int getPositionOfTrack(@NonNull Track t)
     {
-        int n = tracks.size();
+        Snapshot s = snapshot();
+        int n = s.tracks.size();
 
         // Optimize for the common case
-        if (position >= 0 && position < n && t == tracks.get(position))
-            return position;
+        if (s.position >= 0 && s.position < n && t == s.tracks.get(s.position))
+            return s.position;
+
+        // Track.index is usually right.  If not, ask again while holding the lock
+        int i = t.index;
+        if (i >= 0 && i < n && t == s.tracks.get(i))
+            return i;
+        synchronized (Tracks.class) {
+            return positionOf(t);
+        }
+    }
 
-        for (int i = 0; i < n; ++i)
-            if (t == tracks.get(i))
-                return i;
-        return -1;
+    // The index of `t` in `tracks`, or -1.  Unlike getPositionOfTrack, this
+    // doesn't look at the snapshot, which is stale while a change is under
+    // way.  Call with the lock held.
+    private static int positionOf(@NonNull Track t) {
+        int i = indexOf(t);
+        if (i == -1 || i >= tracks.size() || t != tracks.get(i))
+            return -1;
+        return i;
+    }
+
+    // The index of `t` in `tracks` if it's there.  Otherwise, -1 or some
+    // index where there's another track
+    private static int indexOf(@NonNull Track t) {
+        if (t.index < 0 || t.index >= indexedTo) {
+            if (indexedTo == tracks.size())
+                return -1;
+            reindex(indexedTo, tracks.size());
+            indexedTo = tracks.size();
+        }
+        return t.index;
+    }
+
+    // The index in `tracks` of the track with this ident, or -1
+    private static int positionOfIdent(@NonNull String ident) {
+        Track t = trackByIdent.get(ident);
+        if (t == null)
+            return -1;
+        return indexOf(t);
+    }
+
+    // The tracks at index `from` and beyond have moved
+    private static void reindex(int from) {
+        if (from < indexedTo)
+            indexedTo = from;
     }
 
-    static synchronized int numDownloadable() {
-        return (int) tracks.stream().filter(track -> !track.downloaded).count();
+    // Refresh Track.index for tracks at index `from` up to but not including `to`
+    private static void reindex(int from, int to) {
+        for (int i = from; i < to; ++i)
+            tracks.get(i).index = i;
+    }
+
+    static int numDownloadable() {
+        return (int) snapshot().tracks.stream().filter(track -> !track.downloaded).count();
     }
 
     @Nullable
-    static synchronized Track track(int pos) {
-        if (pos < 0 || pos >= tracks.size())
-            return null;
-        return tracks.get(pos);
+    static Track track(int pos) {
+        return snapshot().track(pos);
     }
 
     @Nullable
-    static synchronized Track currentTrack() {
-        return track(position);
+    static Track currentTrack() {
+        Snapshot s = snapshot();
+        return s.track(s.position);
     }
 
-    static synchronized int currentPosition() {
-        return position;
+    static int currentPosition() {
+        return snapshot().position;
+    }
+
+    // The selected track, for use while holding the lock and changing `tracks`
+    @Nullable
+    private static Track selectedTrack() {
+        if (position < 0 || position >= tracks.size())
+            return null;
+        return tracks.get(position);
     }
 
     interface TrackFunction {
         void apply(Track t);
     }
 
-    static synchronized void forEach(@NonNull TrackFunction fun) {
-        for (Track t : tracks)
+    static void forEach(@NonNull TrackFunction fun) {
+        for (Track t : snapshot().tracks)
             fun.apply(t);
     }
 
-    @Nullable
-    static synchronized Track[] downloadable() {
-        List<Track> found = new ArrayList<>();
-        for (Track track: tracks)
-            if (!track.downloaded)
-                found.add(track);
-        if (found.isEmpty())
-            return null;
-        return found.toArray(new Track[0]);
+    /* A track, and how long until we expect to start playing it */
+    static final class Due {
+        @NonNull final Track track;
+        final long playInMs;    // Long.MAX_VALUE if it's finished, so we won't play it
+
+        Due(@NonNull Track track, long playInMs) {
+            this.track = track;
+            this.playInMs = playInMs;
+        }
+    }
+
+    /* The tracks in the order we expect to play them, with when.  Playback
+       goes on from the selected track and then, per `afterTrack`, either to
+       the ones after it (wrapping around to the top) or back to the top.
+       Either way, we expect to play a track after the remaining time of all
+       the unfinished tracks before it in that order.  Finished tracks come
+       last, with playInMs Long.MAX_VALUE. */
+    @NonNull
+    static List<Due> playOrder(@NonNull MainActivity.AfterTrack afterTrack) {
+        Snapshot s = snapshot();
+        int n = s.tracks.size();
+        int cur = Math.max(s.position, 0);
+        List<Due> order = new ArrayList<>(n);
+        List<Due> finished = new ArrayList<>();
+        long aheadMs = 0;
+        for (int i = 0; i < n; ++i) {
+            int k;
+            if (i == 0)
+                k = cur;
+            else if (afterTrack == MainActivity.AfterTrack.FIRST)
+                k = i <= cur ? i - 1 : i;   // 0, 1, ... skipping `cur`
+            else
+                k = (cur + i) % n;
+            Track t = s.tracks.get(k);
+            if (t.isFinished())
+                finished.add(new Due(t, Long.MAX_VALUE));
+            else {
+                order.add(new Due(t, aheadMs));
+                aheadMs += t.remMs();
+            }
+        }
+        order.addAll(finished);
+        return order;
+    }
+
+    // The tracks to download, the soonest to be played first
+    @NonNull
+    static List<Due> downloadSchedule(@NonNull MainActivity.AfterTrack afterTrack) {
+        List<Due> due = new ArrayList<>();
+        for (Due d : playOrder(afterTrack))
+            if (!d.track.downloaded)
+                due.add(d);
+        return due;
     }
 
     @Nullable
     static synchronized Track findTrackByIdent(@NonNull String ident) {
-        for (Track t : tracks)
-            if (ident.equals(t.ident))
-                return t;
-        return null;
+        return trackByIdent.get(ident);
     }
 
     static synchronized void selectTrackByIdent(@NonNull String ident) {
-        int n = tracks.size();
-        for (int i = 0; i < n; ++i) {
-            Track t = tracks.get(i);
-            if (ident.equals(t.ident)) {
-                if (position != i) {
-                    Log.i(TAG, "selectTrackByIdent: position " + position +
-                            " -> " + i + " for " + t);
-                    position = i;
-                }
-                return;
-            }
+        selectByIdent(ident);
+        publish(false);
+    }
+
+    private static void selectByIdent(@NonNull String ident) {
+        int i = positionOfIdent(ident);
+        if (i == -1) {
+            Note.w(TAG, "selectTrackByIdent: no such track " + ident);
+            return;
+        }
+        if (position != i) {
+            Log.i(TAG, "selectTrackByIdent: position " + position +
+                    " -> " + i + " for " + tracks.get(i));
+            position = i;
         }
-        Note.w(TAG, "selectTrackByIdent: no such track " + ident);
     }
 
     @Nullable
-    static synchronized Track pickNext() {
+    static Track pickNext() {
         /* Pick the next higher-numbered track that hasn't finished yet. */
-        int n = tracks.size();
-        int k = position;
+        Snapshot s = snapshot();
+        int n = s.tracks.size();
+        int k = s.position;
         for (int i = 0; i < n; ++i) {
-            Track t = tracks.get(++k % n);
+            Track t = s.tracks.get(++k % n);
             if (t.downloaded && !t.isFinished())
                 return t;
         }
@@ -167,9 +506,9 @@ class Tracks {
     }
 
     @Nullable
-    static synchronized Track pickFirst() {
+    static Track pickFirst() {
         /* Pick the first track that hasn't finished yet. */
-        for (Track t : tracks)
+        for (Track t : snapshot().tracks)
             if (t.downloaded && !t.isFinished())
                 return t;
         Log.i(TAG, "pickFirst - none");
@@ -183,20 +522,20 @@ class Tracks {
         sb.append('\t');
         sb.append(t.ident);
         sb.append('\t');
-        sb.append(t.curMs);
+        sb.append(t.curMs());
         sb.append('\t');
-        sb.append(t.durMs);
+        sb.append(t.durMs());
         sb.append('\t');
         sb.append(t.title);
         sb.append('\t');
-        sb.append(t.when);
+        sb.append(t.when());
         sb.append('\t');
         sb.append(t.downloaded);
         sb.append('\t');
         sb.append(t.artist);
         sb.append('\t');
         if (t.quiet != null)
-            Utilities.integersToString(t.quiet, sb);
+            Utilities.intsToString(t.quiet, sb);
         sb.append('\t');
         if (t.emoji != null)
             sb.append(t.emoji);
@@ -214,74 +553,285 @@ class Tracks {
         TcpService.broadcast(TcpService.NFY_TRACK_UPDATED, getTrackState(t));
     }
 
-    static synchronized void writeState(@NonNull Context context, @NonNull String why) {
+    /* The state is _state.txt plus the journal _state.log.  Each writeState
+       appends just the positions that changed (and the selected track, if it
+       changed) to the journal:
+
+           G <tab> generation     first line: the _state.txt it applies to
+           P <tab> ident <tab> curMs
+           S <tab> ident
+
+       Once the journal has JOURNAL_LIMIT records, writeState compacts: it
+       rewrites _state.txt with the next generation and starts a new journal.
+       A journal left over from an earlier generation (because we stopped
+       between the rename and starting the new journal) is ignored, not
+       replayed over newer positions. */
+
+    /** Serializes writers of _state.txt and _state.log, without blocking changes to `tracks` */
+    private static final Object stateFileLock = new Object();
+
+    /** Tracks whose curMs changed since it was last written to the journal */
+    private static final Set<Track> unsavedPositions = ConcurrentHashMap.newKeySet();
+
+    // Guarded by stateFileLock
+    private static long stateGeneration;
+    private static int journalRecords = -1;     // -1: no journal for stateGeneration yet
+    @Nullable private static String journaledSelection;
+
+    /** How long writeState waits before writing, so that a burst of changes
+        (e.g., a run of seeks from QtEdPod) is written once */
+    static volatile int stateWriteWindowMs = 2000;
+
+    /** True if there are changes a pending write hasn't picked up yet */
+    private static final AtomicBoolean stateDirty = new AtomicBoolean();
+
+    private static final AtomicInteger stateWritesRequested = new AtomicInteger();
+    private static final AtomicInteger stateWritesDone = new AtomicInteger();
+
+    // Started on first use
+    private static final class StateWriter {
+        static final Handler handler;
+        static {
+            HandlerThread thread = new HandlerThread("StateWriter");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+    }
+
+    /* Save the state soon, on the StateWriter thread.  Requests made within
+       stateWriteWindowMs of the first are coalesced into one write. */
+    static void writeState(@NonNull Context context, @NonNull String why) {
+        stateWritesRequested.incrementAndGet();
+        if (stateDirty.getAndSet(true))
+            return;     // already scheduled
+        Context app = context.getApplicationContext();
+        StateWriter.handler.postDelayed(() -> {
+            if (stateDirty.getAndSet(false))
+                writeStateNow(app, why);
+        }, stateWriteWindowMs);
+    }
+
+    /* Save the state now, on the StateWriter thread, without waiting for
+       the stateWriteWindowMs.  For the UI thread, which shouldn't wait for
+       the syncs. */
+    static void flushStateSoon(@NonNull Context context, @NonNull String why) {
+        stateWritesRequested.incrementAndGet();
+        stateDirty.set(false);  // This write picks up any pending one's changes
+        Context app = context.getApplicationContext();
+        StateWriter.handler.post(() -> writeStateNow(app, why));
+    }
+
+    /* Save the state now, on this thread.  For when we're stopping and
+       a pending write might never happen. */
+    static void flushState(@NonNull Context context, @NonNull String why) {
+        stateWritesRequested.incrementAndGet();
+        stateDirty.set(false);
+        writeStateNow(context, why);
+        if (catalogPending.getAndSet(false))
+            Catalog.write(context, snapshot().tracks);
+    }
+
+    /** True if a catalog write is scheduled and hasn't started yet */
+    private static final AtomicBoolean catalogPending = new AtomicBoolean();
+
+    /* Rewrite _catalog.bin soon, on the StateWriter thread, from the published
+       snapshot, so that restore doesn't hold the lock through the write and
+       its sync.  A poll calls restore every few hundred ms while it installs
+       tracks; requests within stateWriteWindowMs of the first are coalesced
+       into one write. */
+    private static void writeCatalog(@NonNull Context context) {
+        if (catalogPending.getAndSet(true))
+            return;     // already scheduled
+        Context app = context.getApplicationContext();
+        StateWriter.handler.postDelayed(() -> {
+            // Before taking the snapshot, so a later change schedules another write
+            if (catalogPending.getAndSet(false))
+                Catalog.write(app, snapshot().tracks);
+        }, stateWriteWindowMs);
+    }
+
+    private static void writeStateNow(@NonNull Context context, @NonNull String why) {
+        synchronized (stateFileLock) {
+            Snapshot s = snapshot();
+            if (journalRecords >= JOURNAL_LIMIT || !appendJournal(context, s)) {
+                compactState(context, s);
+                why += " (compacted)";
+            }
+            Log.i(TAG, "writeState " + why + ": " + stateWritesDone.get() + " writes for "
+                  + stateWritesRequested.get() + " requests, " + Utilities.syncStats());
+        }
+    }
+
+    // Returns false if the journal couldn't be written
+    private static boolean appendJournal(@NonNull Context context, @NonNull Snapshot s) {
+        StringBuilder sb = new StringBuilder();
+        boolean start = journalRecords == -1;
+        if (start) {
+            sb.append("G\t").append(stateGeneration).append('\n');
+            journalRecords = 0;
+        }
+        int records = 0;
+        for (Iterator<Track> it = unsavedPositions.iterator(); it.hasNext();) {
+            Track t = it.next();
+            it.remove();    // before reading curMs, so a concurrent change gets noted again
+            sb.append("P\t").append(t.ident).append('\t').append(t.curMs()).append('\n');
+            ++records;
+        }
+        Track selected = s.track(s.position);
+        if (selected != null && !selected.ident.equals(journaledSelection)) {
+            sb.append("S\t").append(selected.ident).append('\n');
+            journaledSelection = selected.ident;
+            ++records;
+        }
+        if (sb.length() == 0)
+            return true;    // nothing changed
+
+        File file = new File(Utilities.getFolder(context), JOURNAL_FILE_NAME);
+        try (FileOutputStream fos = new FileOutputStream(file, !start)) {
+            fos.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            if (STATE_SYNC != Utilities.Sync.NONE)
+                Utilities.sync(fos);
+        }
+        catch (IOException ex) {
+            Note.e(TAG, "Could not append to " + file, ex);
+            return false;
+        }
+        if (start && STATE_SYNC == Utilities.Sync.FULL)
+            Utilities.syncFolder(file.getParentFile());
+        journalRecords += records;
+        stateWritesDone.incrementAndGet();
+        return true;
+    }
+
+    private static void compactState(@NonNull Context context, @NonNull Snapshot s) {
+        unsavedPositions.clear();   // _state.txt will have every position
+
         StringBuilder sb = new StringBuilder();
 
-        Track selected = currentTrack();
+        Track selected = s.track(s.position);
         if (selected != null)
             sb.append(selected.ident);
         sb.append('\t');
         sb.append(BuildConfig.BUILD_TIME);
+        sb.append('\t');
+        sb.append(stateGeneration + 1);
         sb.append('\n');
 
-        for (Track track : tracks) {
-            if (track.curMs < 20000)    // if not yet started or only barely started, forget it
+        for (Track track : s.tracks) {
+            if (track.curMs() < 20000)    // if not yet started or only barely started, forget it
                 continue;
             sb.append(track.ident);
             sb.append('\t');
-            sb.append(track.curMs);
+            sb.append(track.curMs());
             sb.append('\n');
         }
 
-        Utilities.writeFile(context, STATE_FILE_NAME, sb);
-        Log.i(TAG, "writeState " + why);
+        Utilities.writeChecked(new File(Utilities.getFolder(context), STATE_FILE_NAME), sb, STATE_SYNC);
+        stateWritesDone.incrementAndGet();
+        ++stateGeneration;
+        journalRecords = -1;
+        journaledSelection = selected == null ? null : selected.ident;
+    }
+
+    /* Apply the records of _state.log on top of what we read from _state.txt.
+       Returns the ident of the selected track, or `selected` if the journal
+       doesn't select one. */
+    @Nullable
+    private static String replayJournal(@NonNull File folder, @Nullable String selected) {
+        File file = new File(folder, JOURNAL_FILE_NAME);
+        String text;
+        try {
+            text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        }
+        catch (NoSuchFileException ex) {
+            return selected;
+        }
+        catch (IOException ex) {
+            Note.e(TAG, "replayJournal: I/O", ex);
+            return selected;
+        }
+        // Ignore an incomplete last record, e.g. if we stopped partway through an append
+        String[] lines = text.substring(0, text.lastIndexOf('\n') + 1).split("\n");
+        if (lines.length == 0 || !lines[0].equals("G\t" + stateGeneration)) {
+            Log.i(TAG, "replayJournal: Ignoring journal for another generation");
+            return selected;
+        }
+        int records = 0;
+        for (int i = 1; i < lines.length; ++i) {
+            String[] f = lines[i].split("\t", -1);
+            int ms;
+            if (f.length == 3 && f[0].equals("P") && (ms = parseMs(f[2])) != -1) {
+                Track track = findTrackByIdent(f[1]);
+                if (track != null)
+                    track.setCurMs(ms);
+            }
+            else if (f.length == 2 && f[0].equals("S"))
+                selected = f[1];
+            else {
+                Note.w(TAG, "replayJournal: Bad record |" + lines[i] + '|');
+                continue;
+            }
+            ++records;
+        }
+        Log.i(TAG, "replayJournal: " + records + " records");
+        journalRecords = records;
+        journaledSelection = selected;
+        return selected;
+    }
+
+    // A position from _state.log, or -1 if it's garbled
+    private static int parseMs(@NonNull String s) {
+        try {
+            int ms = Integer.parseInt(s);
+            return ms < 0 ? -1 : ms;
+        }
+        catch (NumberFormatException ex) {
+            return -1;
+        }
     }
 
     private static boolean readState(@NonNull Context context) {
-        if (haveTracks())
+        if (position != -1)
             // We have already loaded _state.txt into `tracks`
             return false; // unchanged
 
         File folder = Utilities.getFolder(context);
 
         tracks.clear();
-
-        File[] tagFiles = folder.listFiles(f -> f.getName().endsWith(".tag"));
-        if (tagFiles == null) {
-            Note.w(TAG, "readState: Can't access directory: " + folder);
-            return false;
+        trackByIdent.clear();
+        indexedTo = 0;
+
+        List<Track> catalog = Catalog.read(context);
+        if (catalog != null) {
+            for (Track track : catalog) {
+                tracks.add(track);
+                trackByIdent.put(track.ident, track);
+            }
         }
-        for (File tagFile: tagFiles) {
-            String ident = Utilities.removeSuffix(tagFile.getName(), ".tag");
-
-            Tags tags = Tags.fromFile(context, ident);
-            if (tags == null)
-                continue;
-
-            Track track = new Track(ident);
-            track.title = tags.title;
-            track.artist = tags.artist;
-            track.priority = tags.priority;
-            track.size = tags.size;
-            // track.curMs - from _state.txt
-            track.durMs = tags.durMs;
-            track.when = tags.when;
-            // track.downloaded - default
-            // this.skipForwardMs - default
-            // this.skipBackwardMs - default
-            track.emoji = tags.emoji;
-            track.feed_url = tags.feed_url;
-            track.track_url = tags.track_url;
-            track.quiet = tags.quiet;
-            tracks.add(track);
+        else {
+            // Normally importTagFiles has already parsed them, without the lock
+            List<Track> parsed = imported.getAndSet(null);
+            if (parsed == null)
+                parsed = parseTagFiles(context, folder, null);
+            if (parsed == null)
+                return false;
+            for (Track track : parsed) {
+                tracks.add(track);
+                trackByIdent.put(track.ident, track);
+            }
+            catalogDirty = true;
         }
+        reindex(0);
 
         position = 0;
         try {
             BufferedReader br = null;
             try {
                 File file = new File(folder, STATE_FILE_NAME);
-                br = new BufferedReader(new FileReader(file));
+                String text = Utilities.readChecked(file);
+                if (text == null)
+                    throw new FileNotFoundException("No good " + file);
+                br = new BufferedReader(new StringReader(text));
 
                 // First line is the ident of the selected track
                 String selected = null;
@@ -294,6 +844,8 @@ class Tracks {
                         selected = f[i];
                     if (f.length > ++i)
                         buildTime = Long.parseLong(f[i]);
+                    if (f.length > ++i)
+                        stateGeneration = Long.parseLong(f[i]);
                     if (f.length > ++i)
                         Log.w(TAG, "Extra fields in first line of state file: " + i + " " + line);
                 }
@@ -310,10 +862,11 @@ class Tracks {
 
                     Track track = findTrackByIdent(ident);
                     if (track != null)
-                        track.curMs = curMs;
+                        track.setCurMs(curMs);
                 }
+                selected = replayJournal(folder, selected);
                 if (selected != null)
-                    selectTrackByIdent(selected);
+                    selectByIdent(selected);
 
                 // Warn if the state file was saved by a newer version of the app.
                 // That means somehow we reverted to an older build.
@@ -332,6 +885,10 @@ class Tracks {
         }
         catch (FileNotFoundException ex) {
             Note.e(TAG, "readState: File not found, permissions?", ex);
+            // Not yet compacted, perhaps.  There may still be a journal
+            String selected = replayJournal(folder, null);
+            if (selected != null)
+                selectByIdent(selected);
         }
         catch (IOException ex) {
             Note.e(TAG, "readState: I/O", ex);
@@ -339,6 +896,93 @@ class Tracks {
         return true; // changed
     }
 
+    /** Tracks that importTagFiles parsed, for readState to pick up */
+    private static final AtomicReference<List<Track>> imported = new AtomicReference<>();
+
+    /** Serializes importTagFiles.  Never taken while holding the Tracks.class monitor */
+    private static final Object importLock = new Object();
+
+    /* If there's no catalog, the first restore has to parse every .tag file.
+       Do that before restore takes the lock, so nothing that needs the lock
+       waits for it all.  Meanwhile, publish what we have so far every
+       INTERIM_PUBLISH_MS and say so, so the UI can show the first rows. */
+    private static void importTagFiles(@NonNull Context context) {
+        synchronized (importLock) {
+            if (haveTracks() || imported.get() != null || Catalog.exists(context))
+                return;
+            List<Track> parsed = parseTagFiles(context, Utilities.getFolder(context), sofar -> {
+                sofar.sort(trackComparator);
+                synchronized (Tracks.class) {
+                    if (position != -1)
+                        return;     // Another thread got there first
+                    publish(sofar, -1);
+                }
+                context.sendBroadcast(new Intent(ACTION_TRACKS_LIST_CHANGED));
+            });
+            imported.set(parsed);
+        }
+    }
+
+    /* Create a track for each .tag file in `folder`, parsing the files in
+       parallel.  Every INTERIM_PUBLISH_MS until that's done, pass a copy of
+       the tracks parsed so far to `interim`, if any.  Returns null if the
+       folder can't be read. */
+    @Nullable
+    private static List<Track> parseTagFiles(@NonNull Context context, @NonNull File folder,
+                                             @Nullable Consumer<List<Track>> interim) {
+        File[] tagFiles = folder.listFiles(f -> f.getName().endsWith(".tag"));
+        if (tagFiles == null) {
+            Note.w(TAG, "readState: Can't access directory: " + folder);
+            return null;
+        }
+        long startMs = SystemClock.elapsedRealtime();
+        Queue<Track> parsed = new ConcurrentLinkedQueue<>();
+        List<Track> list = new ArrayList<>(tagFiles.length);
+        ForkJoinPool pool = new ForkJoinPool(Math.min(LOADER_THREADS,
+                                                      Runtime.getRuntime().availableProcessors()));
+        try {
+            Future<?> done = pool.submit(() -> Arrays.stream(tagFiles).parallel().forEach(tagFile -> {
+                Track track = new Track(Utilities.removeSuffix(tagFile.getName(), ".tag"));
+                // track.curMs - from _state.txt
+                // track.downloaded - findFiles
+                try {
+                    if (fillMetaData(context, track))
+                        parsed.add(track);
+                }
+                catch (RuntimeException ex) {
+                    Note.e(TAG, "Bad tag file " + tagFile.getName(), ex);
+                }
+            }));
+            for (;;) {
+                try {
+                    done.get(INTERIM_PUBLISH_MS, TimeUnit.MILLISECONDS);
+                    break;
+                }
+                catch (TimeoutException ex) {
+                    if (interim != null) {
+                        drain(parsed, list);
+                        interim.accept(new ArrayList<>(list));
+                    }
+                }
+            }
+        }
+        catch (InterruptedException | ExecutionException ex) {
+            Note.e(TAG, "parseTagFiles", ex);
+        }
+        finally {
+            pool.shutdown();
+        }
+        drain(parsed, list);
+        Log.i(TAG, "Imported " + list.size() + " of " + tagFiles.length + " tag files in "
+              + (SystemClock.elapsedRealtime() - startMs) + " ms");
+        return list;
+    }
+
+    private static void drain(@NonNull Queue<Track> parsed, @NonNull List<Track> list) {
+        for (Track track; (track = parsed.poll()) != null; )
+            list.add(track);
+    }
+
     private static void waitForOkay(@NonNull Context context, @NonNull String msg) {
         Log.w(TAG, "Alert: " + msg);
         AlertDialog.Builder alert = new AlertDialog.Builder(context);
@@ -360,24 +1004,30 @@ class Tracks {
             return false;
         }
 
-        Map<String, Track> oldTracks = new HashMap<>();
-        for (Track t : tracks)
-            oldTracks.put(t.ident, t);
+        Map<String, Track> oldTracks = new HashMap<>(trackByIdent);
 
         boolean changed = false;
-        Track cur = currentTrack();
+        Track cur = selectedTrack();
 
         for (File file : files) {
             String fileName = file.getName();
             String ident = Utilities.removeSuffix(fileName, ".tag");
-            if (oldTracks.remove(ident) == null) {
+            Track track = oldTracks.remove(ident);
+            if (track == null) {
                 // wasn't in oldTracks, it's a new track
-                Track track = new Track(ident);
+                track = new Track(ident);
                 fillMetaData(context, track);
                 insertTrack(track);
                 notifyTrackUpdated(track);
                 changed = true;
             }
+            else if (file.lastModified() != track.tagModified) {
+                // The .tag file changed since we (or the catalog) last read it
+                Log.i(TAG, "findFiles: Re-reading " + fileName);
+                fillMetaData(context, track);
+                notifyTrackUpdated(track);
+                changed = true;
+            }
         }
 
         // For each track still in `oldTracks`, the file no longer exists in
@@ -391,6 +1041,8 @@ class Tracks {
             if (oldTracks.remove(t.ident) != null) {
                 Log.i(TAG, "findFiles: Track is gone: " + t);
                 it.remove();
+                trackByIdent.remove(t.ident);
+                t.index = -1;
                 changed = true;
                 if (cur == t) {
                     Log.i(TAG, "findFiles: Was current track: " + cur);
@@ -398,6 +1050,10 @@ class Tracks {
                 }
             }
         }
+        if (changed) {
+            reindex(0);
+            catalogDirty = true;
+        }
 
         // Update the track.downloaded fields
         for (Track track: tracks) {
@@ -427,32 +1083,36 @@ class Tracks {
         }
 
         if (changed && cur != null)
-            selectTrackByIdent(cur.ident);
+            selectByIdent(cur.ident);
 
         return changed;
     }
 
-    private static void fillMetaData(@NonNull Context context, @NonNull Track track) {
+    // Returns false if the .tag file couldn't be read
+    private static boolean fillMetaData(@NonNull Context context, @NonNull Track track) {
+        track.tagModified = track.getTagFile(context).lastModified();
         Tags tags = Tags.fromFile(context, track.ident);
         if (tags == null)
-            return;
+            return false;
         track.title = tags.title;
         track.emoji = tags.emoji;
         track.feed_url = tags.feed_url;
         track.track_url = tags.track_url;
+        track.sha256 = tags.sha256;
         track.artist = tags.artist;
         track.priority = tags.priority;
-        track.size = tags.size;
-        track.durMs = tags.durMs;
-        track.when = tags.when;
+        track.setSize(tags.size);
+        track.setDurMs(tags.durMs);
+        track.setWhen(tags.when);
         track.quiet = tags.quiet;
+        return true;
     }
 
     @NonNull
-    static synchronized List<Track> copyTracks(@NonNull List<Track> copy)
+    static List<Track> copyTracks(@NonNull List<Track> copy)
     {
         copy.clear();
-        copy.addAll(tracks);
+        copy.addAll(snapshot().tracks);
         return copy;
     }
 
@@ -476,59 +1136,212 @@ class Tracks {
     }
     private static final TrackComparator trackComparator = new TrackComparator();
 
-    private static void sortTracks() {
-        Track wasCurrent = currentTrack();
+    @VisibleForTesting
+    static void sortTracks() {
+        Track wasCurrent = selectedTrack();
         tracks.sort(trackComparator);
+        reindex(0);
         if (wasCurrent != null)
-            selectTrackByIdent(wasCurrent.ident);
+            selectByIdent(wasCurrent.ident);
+    }
+
+    // Where `track` belongs in `tracks`, which must already be sorted
+    private static int insertionPoint(@NonNull Track track) {
+        int i = Collections.binarySearch(tracks, track, trackComparator);
+        if (i < 0)
+            i = -(i + 1);   // binarySearch returns -(insertion point) - 1 when not found
+        return i;
     }
 
     // Insert `track` into `tracks` in the right place
-    private static void insertTrack(@NonNull Track newTrack) {
-        // TODO: use Collections.binarySearch
-        // https://stackoverflow.com/questions/16764007/insert-into-an-already-sorted-list/16764413
-        int i = 0;
-        for (Track t: tracks) {
-            if (trackComparator.compare(newTrack, t) <= 0) {
-                tracks.add(i, newTrack);
-                return;
+    @VisibleForTesting
+    static void insertTrack(@NonNull Track newTrack) {
+        trackByIdent.put(newTrack.ident, newTrack);
+        int i = insertionPoint(newTrack);
+        tracks.add(i, newTrack);
+        reindex(i);
+    }
+
+    // The priority of `track` has changed.  Move it to its new place in
+    // `tracks` without re-sorting all the other tracks
+    @VisibleForTesting
+    static void repositionTrack(@NonNull Track track) {
+        int from = positionOf(track);
+        if (from == -1) {
+            Note.w(TAG, "repositionTrack: no such track " + track);
+            return;
+        }
+        tracks.remove(from);
+        int to = insertionPoint(track);
+        tracks.add(to, track);
+        if (from == to)
+            return;
+        reindex(Math.min(from, to), Math.max(from, to) + 1);
+
+        // The tracks between `from` and `to` each shifted by one place
+        if (position == from)
+            position = to;
+        else if (from < position && position <= to)
+            --position;
+        else if (to <= position && position < from)
+            ++position;
+    }
+
+    // Forget all the tracks, for tests that build their own list
+    @VisibleForTesting
+    static synchronized void clearForTest() {
+        tracks.clear();
+        trackByIdent.clear();
+        indexedTo = 0;
+        position = -1;
+        publish(true);
+    }
+
+    // A copy of `tracks` as it is now, not as last published
+    @VisibleForTesting
+    @NonNull
+    static synchronized List<Track> tracksForTest() {
+        return new ArrayList<>(tracks);
+    }
+
+    // True if _catalog.bin doesn't match `tracks`
+    private static boolean catalogDirty;
+
+    /** Names of .tag and .mp3 files that folderObserver saw created, deleted or
+        renamed since the last restore */
+    private static final Set<String> changedFiles = ConcurrentHashMap.newKeySet();
+
+    /** Set if folderObserver isn't running or may have missed something */
+    private static final AtomicBoolean rescanFolder = new AtomicBoolean(true);
+
+    @Nullable private static FileObserver folderObserver;
+
+    private static void watchFolder(@NonNull File folder) {
+        if (folderObserver != null)
+            folderObserver.stopWatching();
+        folderObserver = new FileObserver(folder, FileObserver.CREATE | FileObserver.DELETE
+                                          | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+                                          | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF
+                                          | FileObserver.MOVE_SELF) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                if (path == null || (event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                    // The event queue overflowed, or the folder itself went away
+                    Log.w(TAG, "Folder event " + event + ", will rescan");
+                    rescanFolder.set(true);
+                }
+                else if (path.endsWith(".tag") || path.endsWith(".mp3"))
+                    changedFiles.add(path);
+            }
+        };
+        folderObserver.startWatching();
+    }
+
+    // Apply the changes that folderObserver saw.
+    // Returns true if the list of tracks changes.
+    private static boolean updateChangedFiles(@NonNull Context context, @NonNull File folder) {
+        boolean changed = false;
+        Track cur = selectedTrack();
+
+        for (Iterator<String> it = changedFiles.iterator(); it.hasNext();) {
+            String name = it.next();
+            it.remove();
+            if (name.endsWith(".mp3")) {
+                Track track = trackByIdent.get(Utilities.removeSuffix(name, ".mp3"));
+                // If the .tag file is gone too then the track is being deleted,
+                // see the "Race averted" comment in findFiles
+                if (track == null || !track.getTagFile(context).exists())
+                    continue;
+                boolean downloaded = track.getAudioFile(context).exists();
+                if (downloaded != track.downloaded) {
+                    track.downloaded = downloaded;
+                    notifyTrackUpdated(track);
+                }
+                continue;
+            }
+
+            String ident = Utilities.removeSuffix(name, ".tag");
+            Track track = trackByIdent.get(ident);
+            long lm = new File(folder, name).lastModified();    // 0 if there's no such file
+            if (lm == 0) {
+                if (track == null)
+                    continue;
+                Log.i(TAG, "updateChangedFiles: Track is gone: " + track);
+                int i = positionOf(track);
+                if (i == -1) {
+                    Note.w(TAG, "updateChangedFiles: no such track " + track);
+                    trackByIdent.remove(ident);
+                    continue;
+                }
+                tracks.remove(i);
+                trackByIdent.remove(ident);
+                track.index = -1;
+                reindex(i);
+                if (cur == track)
+                    cur = tracks.isEmpty() ? null : tracks.get(Math.min(i, tracks.size() - 1));
+            }
+            else if (track == null) {
+                track = new Track(ident);
+                fillMetaData(context, track);
+                track.downloaded = track.getAudioFile(context).exists();
+                insertTrack(track);
+                notifyTrackUpdated(track);
             }
-            ++i;
+            else if (lm != track.tagModified) {
+                Log.i(TAG, "updateChangedFiles: Re-reading " + name);
+                fillMetaData(context, track);
+                repositionTrack(track);
+                notifyTrackUpdated(track);
+            }
+            else
+                continue;
+            changed = true;
+        }
+
+        if (changed) {
+            catalogDirty = true;
+            if (cur != null)
+                selectByIdent(cur.ident);
         }
-        // add at end
-        tracks.add(newTrack);
+        return changed;
     }
 
-    private static boolean isFolderModified(@NonNull File folder) {
-        /* The granularity of the last-modified time depends on the
-           file system.  Although the units are milliseconds, the granularity
-           seems to be seconds on my phone's file system.  So, for two
-           calls to restore() in rapid succession with changes in between,
-           the changes won't be noticed. */
-        long lm = folder.lastModified();
-        if (lm == folderLastMod)
-            return false;
-        Log.i(TAG, "Folder changed from " + folderLastMod + " to " + lm);
-        folderLastMod = lm;
-        return true;
+    static void restore(@NonNull Context context, boolean force) {
+        if (!haveTracks())
+            importTagFiles(context);
+        // Say so after letting go of the lock, since the receivers may call back into Tracks
+        if (restoreLocked(context, force))
+            context.sendBroadcast(new Intent(ACTION_TRACKS_LIST_CHANGED));
     }
 
-    static synchronized void restore(@NonNull Context context, boolean force) {
+    // Returns true if we should say the list changed
+    private static synchronized boolean restoreLocked(@NonNull Context context, boolean force) {
         // If we haven't read _state.txt yet, read it now to populate `tracks`
-        boolean changed = readState(context);
+        boolean changed;
+        synchronized (stateFileLock) {
+            changed = readState(context);
+        }
+        boolean resort = changed;
 
         File folder = Utilities.getFolder(context);
-        if (isFolderModified(folder) || force) {
-            // Folder has been modified since the last time we scanned it
-            // Scan for new tracks
+        if (rescanFolder.getAndSet(false)) {
+            // Start watching before scanning so that nothing slips between the two
+            changedFiles.clear();
+            watchFolder(folder);
             if (findFiles(context, folder))
-                changed = true;
+                changed = resort = true;
         }
+        else if (!changedFiles.isEmpty() && updateChangedFiles(context, folder))
+            changed = true;     // updateChangedFiles keeps `tracks` sorted
 
-        if (changed)
+        if (resort)
             sortTracks();
-        if (force || changed)
-            context.sendBroadcast(new Intent(ACTION_TRACKS_LIST_CHANGED));
+        publish(changed);
+        if (catalogDirty) {
+            writeCatalog(context);
+            catalogDirty = false;
+        }
+        return force || changed;
     }
 
     static synchronized Optional<Boolean> setPriority(@NonNull Context context, @NonNull String ident,
@@ -540,9 +1353,10 @@ class Tracks {
             return Optional.of(false);       // unchanged
         Log.i(TAG, "setPriority: Changed " + t.priority + " to " + priority + " for " + ident);
         t.priority = priority;
-        sortTracks();
+        repositionTrack(t);
+        publish(true);
         notifyTrackUpdated(t);
-        Tags.setPriority(context, t.ident, t.priority);
+        saveTags(context, Collections.singletonList(t));
         return Optional.of(true);
     }
 
@@ -558,7 +1372,7 @@ class Tracks {
             t.emoji = null;
             Log.i(TAG, "setEmoji: Cleared for " + ident);
             notifyTrackUpdated(t);
-            Tags.setEmoji(context, t.ident, t.emoji);
+            saveTags(context, Collections.singletonList(t));
             return Optional.of(true);
         }
 
@@ -567,7 +1381,7 @@ class Tracks {
         t.emoji = emoji;
         Log.i(TAG, "setEmoji: Set " + emoji + " for " + ident);
         notifyTrackUpdated(t);
-        Tags.setEmoji(context, t.ident, t.emoji);
+        saveTags(context, Collections.singletonList(t));
         return Optional.of(true);
     }
 
@@ -583,7 +1397,7 @@ class Tracks {
         t.title = title;
         Log.i(TAG, "setTitle: Set " + title + " for " + ident);
         notifyTrackUpdated(t);
-        Tags.setTitle(context, t.ident, t.title);
+        saveTags(context, Collections.singletonList(t));
         return Optional.of(true);
     }
 
@@ -598,44 +1412,72 @@ class Tracks {
         t.artist = artist;
         Log.i(TAG, "setArtist: Set " + artist + " for " + ident);
         notifyTrackUpdated(t);
-        Tags.setArtist(context, t.ident, t.artist);
+        saveTags(context, Collections.singletonList(t));
         return Optional.of(true);
     }
 
+    // Write the .tag files of `changed` from what's in memory
+    private static void saveTags(@NonNull Context context, @NonNull List<Track> changed) {
+        /* Try once more before giving up on the files.  The changes are
+           still kept in the catalog. */
+        if (!Tags.writeFiles(context, changed) && !Tags.writeFiles(context, changed))
+            Note.e(TAG, "Could not save the tags of " + changed.size() + " tracks");
+        for (Track t : changed)
+            // So that updateChangedFiles doesn't read back what we just wrote
+            t.tagModified = t.getTagFile(context).lastModified();
+        catalogDirty = true;
+    }
+
     static synchronized void seek(@NonNull Context context, @NonNull Track track, int whereMs) {
         if (whereMs < 0)
             whereMs = 0;
-        else if (whereMs > track.durMs)
-            whereMs = track.durMs;
-        if (track.curMs == whereMs)
+        else if (whereMs > track.durMs())
+            whereMs = track.durMs();
+        if (track.curMs() == whereMs)
             return;
-        Log.i(TAG, "seek: From " + track.curMs + " to " + whereMs + " for " + track.ident);
-        track.curMs = whereMs;
+        Log.i(TAG, "seek: From " + track.curMs() + " to " + whereMs + " for " + track.ident);
+        setCurMs(track, whereMs);
         notifyTrackUpdated(track);
         writeState(context, "seek");
     }
 
-    static synchronized int remMs() {
-        int ms = 0;
-        for (Track t : tracks)
-            ms += t.remMs();
-        return ms;
+    /* Set the playback position of `t`, keeping the snapshot's RemTree up to
+       date.  MusicService calls this on every tick, so it doesn't lock */
+    static void setCurMs(@NonNull Track t, int curMs) {
+        if (t.curMs() == curMs)
+            return;
+        t.setCurMs(curMs);
+        unsavedPositions.add(t);
+        positionChanges.incrementAndGet();
+        // A snapshot published meanwhile may have counted the old position,
+        // so catch up until there's no newer one
+        Snapshot was = null;
+        for (Snapshot s = snapshot(); s != was; s = snapshot()) {
+            int pos = s.positionOf(t);
+            if (pos != -1)
+                s.remTree.set(pos, t.remMs());
+            was = s;
+        }
+    }
+
+    static int remMs() {
+        return snapshot().remTree.total();
     }
 
-    static synchronized int numTracks() {
-        return tracks.size();
+    static int numTracks() {
+        return snapshot().tracks.size();
     }
 
     static int numRewindable() {
-        return (int) tracks.stream().filter(track -> track.curMs != 0).count();
+        return (int) snapshot().tracks.stream().filter(track -> track.curMs() != 0).count();
     }
 
     static synchronized int rewindAll() {
         int numRewound = 0;
         for (int i = 0; i <= Tracks.position; ++i) {
             Track t = tracks.get(i);
-            if (t.curMs != 0) {
-                t.curMs = 0;
+            if (t.curMs() != 0) {
+                setCurMs(t, 0);
                 ++numRewound;
             }
         }
@@ -645,21 +1487,25 @@ class Tracks {
     // Tracks with this emoji won't be automatically deleted
     private static final String KEEP_EMOJI = "🌟";
 
-    static private boolean isFinishedDeletable(@NonNull Track track) {
-        if (track.emoji != null && track.emoji.contains(KEEP_EMOJI))
+    static boolean isKept(@NonNull Track track) {
+        return track.emoji != null && track.emoji.contains(KEEP_EMOJI);
+    }
+
+    static boolean isFinishedDeletable(@NonNull Track track) {
+        if (isKept(track))
             return false;
-        if (track.durMs == 0)
+        if (track.durMs() == 0)
             return false;
         return track.isFinished();
     }
 
-    static synchronized boolean anyFinishedDeletable() {
-        return tracks.stream().anyMatch(Tracks::isFinishedDeletable);
+    static boolean anyFinishedDeletable() {
+        return snapshot().tracks.stream().anyMatch(Tracks::isFinishedDeletable);
     }
 
-    static synchronized int deleteFinished(@NonNull Context context) {
+    static int deleteFinished(@NonNull Context context) {
         int numDeleted = 0;
-        for (Track t : tracks)
+        for (Track t : snapshot().tracks)
             if (isFinishedDeletable(t)) {
                 t.deleteFiles(context);
                 ++numDeleted;
@@ -670,42 +1516,42 @@ class Tracks {
     @SuppressLint("DefaultLocale")
     static synchronized void moveToTop(@NonNull Context context, @NonNull Track track)
     {
-        Track wasCurrent = currentTrack();
+        Track wasCurrent = selectedTrack();
         if (wasCurrent == null)
             return;
 
+        // We hold the lock and every change publishes a snapshot, so this
+        // matches `tracks`
+        PriorityClass top = snapshot().findClass(Track.TOP_PRIORITY_CLASS);
+
+        List<Track> changed = new ArrayList<>();
         int place = 0;
         if (track.isTopPriority()) {
             // `track` is already in the top group.  Move it to the very top
             int i = 0;
-            for (Track t : tracks) {
+            for (int pos = top.first; pos < top.first + top.count; ++pos) {
+                Track t = tracks.get(pos);
                 if (t == track)
                     continue;
-                if (t.priority.isEmpty())
-                    continue;
-                if (!t.isTopPriority())
-                    continue;
                 ++i;
                 t.priority = String.format("%c%04d", Track.TOP_PRIORITY_CLASS, i);
                 Tracks.notifyTrackUpdated(t);
-                Tags.setPriority(context, t.ident, t.priority);
+                changed.add(t);
             }
         }
-        else {
+        else if (top != null) {
             // `track` is not already in the top group.  Move it to the bottom of the top group
-            int i = 0;
-            for (Track t : tracks) {
-                ++i;
-                if (t.isTopPriority())
-                    place = i;
-            }
+            place = top.first + top.count;
         }
         track.priority = String.format("%c%04d", Track.TOP_PRIORITY_CLASS, place);
         Tracks.notifyTrackUpdated(track);
-        Tags.setPriority(context, track.ident, track.priority);
+        changed.add(track);
+        saveTags(context, changed);
 
-        tracks.sort(trackComparator);
-        selectTrackByIdent(wasCurrent.ident);
+        /* Renumbering the rest of the top group doesn't change their order
+           relative to each other, so only `track` needs to move. */
+        repositionTrack(track);
+        publish(true);
         writeState(context, "moveToTop");
     }
 }
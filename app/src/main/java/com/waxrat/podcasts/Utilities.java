@@ -8,25 +8,33 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Locale;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 public class Utilities {
     private final static String TAG = "Podcasts.Utilities";
@@ -170,26 +178,9 @@ public class Utilities {
         return s;
     }
 
-    @Nullable
-    static Integer[] integersFromString(@NonNull String value) {
-        if (value.isEmpty())
-            return null;
-        String[] fields = value.split(" +");
-        Integer[] result = new Integer[fields.length];
-        try {
-            for (int i = 0; i < fields.length; ++i)
-                result[i] = Integer.valueOf(fields[i]);
-        }
-        catch (NumberFormatException exc) {
-            Note.e(TAG, "Invalid integers '" + value + '\'');
-            return null;
-        }
-        return result;
-    }
-
-    static void integersToString(@NonNull Integer[] ints, @NonNull StringBuilder sb) {
+    static void intsToString(@NonNull int[] ints, @NonNull StringBuilder sb) {
         boolean sep = false;
-        for (Integer i : ints) {
+        for (int i : ints) {
             if (sep)
                 sb.append(' ');
             sb.append(i);
@@ -208,24 +199,76 @@ public class Utilities {
         }
     }
 
-    static void writeFile(@NonNull Context context, @NonNull String fileName, @NonNull StringBuilder sb) {
+    static void writeFile(@NonNull Context context, @NonNull String fileName, @NonNull byte[] b) {
         File folder = Utilities.getFolder(context);
         File file = new File(folder, fileName);
-        writeFile(file, sb);
+        writeFile(file, b);
     }
 
     static void writeFile(@NonNull File file, @NonNull StringBuilder sb) {
+        writeFile(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void writeFile(@NonNull File file, @NonNull byte[] b) {
+        writeFile(file, b, Sync.DATA, null);
+    }
+
+    /** How hard a write tries to survive a crash or power loss */
+    enum Sync {
+        NONE,   // leave it to the kernel
+        DATA,   // fsync the file before renaming it into place
+        FULL    // and then fsync the folder, so the rename is durable too
+    }
+
+    private static final AtomicLong syncCount = new AtomicLong();
+    private static final AtomicLong syncNanos = new AtomicLong();
+
+    @NonNull
+    static String syncStats() {
+        return syncCount.get() + " syncs in " + syncNanos.get() / 1000000 + " ms";
+    }
+
+    static void sync(@NonNull FileOutputStream fos) throws IOException {
+        long start = System.nanoTime();
+        fos.getFD().sync();
+        syncNanos.addAndGet(System.nanoTime() - start);
+        syncCount.incrementAndGet();
+    }
+
+    static void syncFolder(@NonNull File folder) {
+        long start = System.nanoTime();
+        try (FileChannel fc = FileChannel.open(folder.toPath(), StandardOpenOption.READ)) {
+            fc.force(true);
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Can't sync " + folder, ex);
+            return;
+        }
+        syncNanos.addAndGet(System.nanoTime() - start);
+        syncCount.incrementAndGet();
+    }
+
+    /* Write `b` to `file~` then rename it to `file`.  If `backup` isn't null,
+       the old `file` is first renamed to `backup`. */
+    private static void writeFile(@NonNull File file, @NonNull byte[] b, @NonNull Sync sync,
+                                  @Nullable File backup) {
         File temp = new File(file.getPath() + '~');
 
         try {
             try (FileOutputStream fos = new FileOutputStream(temp)) {
-                byte[] b = sb.toString().getBytes();
                 fos.write(b);
+                if (sync != Sync.NONE)
+                    sync(fos);
             }
-            if (temp.renameTo(file))
-                Log.i(TAG, "Wrote " + file.getName());
-            else
+            if (backup != null && file.exists() && !file.renameTo(backup))
+                Note.w(TAG, "Could not rename " + file + " to " + backup.getName());
+            if (!temp.renameTo(file)) {
                 Note.e(TAG, "Could not rename " + temp);
+                return;
+            }
+            if (sync == Sync.FULL)
+                syncFolder(file.getParentFile());
+            Log.i(TAG, "Wrote " + file.getName());
         }
         catch (FileNotFoundException ex) {
             Note.e(TAG, "File not found, probably permissions", ex);
@@ -235,27 +278,118 @@ public class Utilities {
         }
     }
 
+    /* Files written by writeChecked end with this and the CRC32 (as 8 hex
+       digits and a newline) of everything before it */
+    private static final String CHECKSUM_PREFIX = "#crc32\t";
+    private static final int CHECKSUM_BYTES = CHECKSUM_PREFIX.length() + 9;
+
+    @NonNull
+    private static File backupOf(@NonNull File file) {
+        return new File(file.getPath() + ".bak");
+    }
+
+    /* Write `sb` to `file` with a checksum, keeping the version it replaces as
+       the backup that readChecked falls back on */
+    static void writeChecked(@NonNull File file, @NonNull StringBuilder sb, @NonNull Sync sync) {
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        byte[] footer = String.format(Locale.US, "%s%08x\n", CHECKSUM_PREFIX, crc.getValue())
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] b = Arrays.copyOf(body, body.length + footer.length);
+        System.arraycopy(footer, 0, b, body.length, footer.length);
+        writeFile(file, b, sync, backupOf(file));
+    }
+
+    /* The contents of a file written by writeChecked, without the checksum.
+       If the file is missing or corrupt, the previous version.  Null if
+       there's no good version. */
+    @Nullable
+    static String readChecked(@NonNull File file) {
+        File backup = backupOf(file);
+        boolean hasBackup = backup.exists();
+        // A file without a checksum is from before we had checksums, unless
+        // there's a backup, which means we wrote it and it's been truncated
+        String text = readCheckedVersion(file, !hasBackup);
+        if (text == null && hasBackup) {
+            Note.w(TAG, "Using previous version of " + file.getName());
+            text = readCheckedVersion(backup, false);
+        }
+        return text;
+    }
+
     @Nullable
-    static ArrayList<String> readFile(@NonNull File file) {
-        ArrayList<String> lines = new ArrayList<>();
+    private static String readCheckedVersion(@NonNull File file, boolean uncheckedOkay) {
+        byte[] b;
         try {
-            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                for (;;) {
-                    String line = br.readLine();
-                    if (line == null)
-                        break;
-                    lines.add(line);
-                }
-            } catch (FileNotFoundException ex) {
-                Note.w(TAG, "No file: " + file);
-                return null;
-            }
+            b = Files.readAllBytes(file.toPath());
+        }
+        catch (NoSuchFileException ex) {
+            return null;
         }
         catch (IOException ex) {
             Note.e(TAG, "I/O reading " + file, ex);
             return null;
         }
-        return lines;
+        int len = b.length - CHECKSUM_BYTES;
+        if (len < 0 || !new String(b, len, CHECKSUM_PREFIX.length(), StandardCharsets.UTF_8)
+                .equals(CHECKSUM_PREFIX)) {
+            if (uncheckedOkay && b.length != 0)
+                return new String(b, StandardCharsets.UTF_8);
+            Note.w(TAG, "No checksum in " + file.getName());
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, len);
+        String want = new String(b, len + CHECKSUM_PREFIX.length(), 8, StandardCharsets.UTF_8);
+        if (!want.equals(String.format(Locale.US, "%08x", crc.getValue()))) {
+            Note.w(TAG, "Checksum mismatch in " + file.getName());
+            return null;
+        }
+        return new String(b, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /* Write several files, each the way writeFile does.  Every temporary is
+       written before any is renamed into place, so a failure to write one
+       leaves all of the files as they were.  With `sync`, the temporaries are
+       synced together once they're all written, rather than each as it's
+       written, and for FULL the folder once after the renames (all the files
+       must be in the same folder).  Returns false on failure. */
+    static boolean writeFiles(@NonNull Map<File, byte[]> files, @NonNull Sync sync) {
+        List<File> temps = new ArrayList<>(files.size());
+        try {
+            for (Map.Entry<File, byte[]> e : files.entrySet()) {
+                File temp = new File(e.getKey().getPath() + '~');
+                temps.add(temp);
+                try (FileOutputStream fos = new FileOutputStream(temp)) {
+                    fos.write(e.getValue());
+                }
+            }
+            if (sync != Sync.NONE)
+                for (File temp : temps)
+                    try (FileOutputStream fos = new FileOutputStream(temp, true)) {
+                        sync(fos);
+                    }
+        }
+        catch (IOException ex) {
+            Note.e(TAG, "Save failed", ex);
+            for (File temp : temps)
+                Track.deleteFile(temp);
+            return false;
+        }
+        boolean ok = true;
+        int i = 0;
+        for (File file : files.keySet()) {
+            File temp = temps.get(i++);
+            if (!temp.renameTo(file)) {
+                Note.e(TAG, "Could not rename " + temp);
+                ok = false;
+            }
+        }
+        if (sync == Sync.FULL && !temps.isEmpty())
+            syncFolder(temps.get(0).getParentFile());
+        Log.i(TAG, "Wrote " + files.size() + " files");
+        return ok;
     }
 
     @NonNull
@@ -272,37 +406,4 @@ public class Utilities {
             throw new RuntimeException("No external cache dir");
         return folder;
     }
-
-    private static String toString(@NonNull InputStream is) throws IOException {
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int length;
-        while ((length = is.read(buffer)) != -1)
-            result.write(buffer, 0, length);
-        return result.toString("UTF-8");
-    }
-
-    @Nullable
-    static String capture(@NonNull String command) {
-        String result = null;
-        Process proc = null;
-        try {
-            proc = Runtime.getRuntime().exec(command);
-            InputStream is = proc.getInputStream();
-            result = toString(is);
-        }
-        catch (IOException ex) {
-            Note.e(TAG, "capture: " + command, ex);
-        }
-        finally {
-            if (proc != null)
-                try {
-                    proc.waitFor();
-                }
-                catch (InterruptedException ex) {
-                    Note.e(TAG, "capture: " + command, ex);
-                }
-        }
-        return result;
-    }
 }
@@ -0,0 +1,239 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/* Downloading into a preallocated .part file: resuming after the download
+   was killed or interrupted, and throughput against the old copy loop */
+public class PartialDownloadTest {
+    private static final String VALIDATOR = "\"5f3a-1000\"";
+
+    private File folder;
+    private File file;
+    private File infoFile;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("podcasts").toFile();
+        file = new File(folder, "t.part");
+        infoFile = new File(folder, "t.partinfo");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = folder.listFiles();
+        if (files != null)
+            for (File f : files)
+                Track.deleteFile(f);
+        Track.deleteFile(folder);
+    }
+
+    private static ReadableByteChannel source(int length) {
+        return Channels.newChannel(new java.io.ByteArrayInputStream(new byte[length]));
+    }
+
+    @Test
+    public void resumesFromWhatWasRecorded() throws IOException {
+        int size = 1024 * 1024;
+        PartialDownload part = new PartialDownload(file, infoFile, size);
+        assertEquals(0, part.resumeAt());
+        assertTrue(part.open(0, VALIDATOR));
+        ReadableByteChannel src = source(300 * 1024);
+        while (part.receive(src, 64 * 1024) > 0)
+            continue;
+        part.close();
+        assertEquals(300 * 1024, file.length());
+
+        // Killed partway through the next attempt, leaving the file at its preallocated length
+        part = new PartialDownload(file, infoFile, size);
+        long offset = part.resumeAt();
+        assertEquals(300 * 1024, offset);
+        assertEquals(VALIDATOR, part.validator());
+        assertTrue(part.open(offset, part.validator()));
+        part.receive(source(100 * 1024), 100 * 1024);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+
+        // Resume from what was recorded, not from the file's length
+        part = new PartialDownload(file, infoFile, size);
+        assertEquals(300 * 1024, part.resumeAt());
+
+        // A different expected size can't resume
+        assertEquals(0, new PartialDownload(file, infoFile, size + 1).resumeAt());
+    }
+
+    @Test
+    public void closeAfterInterrupt() throws IOException {
+        int size = 1024 * 1024;
+        PartialDownload part = new PartialDownload(file, infoFile, size);
+        assertTrue(part.open(0, VALIDATOR));
+        part.receive(source(200 * 1024), 200 * 1024);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);    // As if preallocated
+        }
+        // As when ExecutorService.shutdownNow interrupts the download
+        Thread.currentThread().interrupt();
+        try {
+            part.receive(source(100 * 1024), 100 * 1024);
+            fail();
+        }
+        catch (ClosedByInterruptException ex) {
+            // The channel, and with it the file, is now closed
+        }
+        try {
+            part.close();
+        }
+        finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(200 * 1024, file.length());
+        assertEquals(200 * 1024, new PartialDownload(file, infoFile, size).resumeAt());
+    }
+
+    // Serve `size` bytes, as podcasts.php does for "get"
+    private static HttpServer serve(long size) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        byte[] block = new byte[64 * 1024];
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, size);
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (long left = size; left > 0; left -= block.length)
+                    os.write(block, 0, (int) Math.min(left, block.length));
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    // The copy loop downloadAudio used before it wrote through a FileChannel
+    private long copyLoop(URL url) throws IOException {
+        HttpURLConnection h = (HttpURLConnection) url.openConnection();
+        long n = 0;
+        try (InputStream in = new BufferedInputStream(h.getInputStream());
+             FileOutputStream out = new FileOutputStream(file)) {
+            byte[] buf = new byte[10 * 1024];
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                out.write(buf, 0, count);
+                n += count;
+            }
+        }
+        return n;
+    }
+
+    private long receive(URL url, long size) throws IOException {
+        HttpURLConnection h = (HttpURLConnection) url.openConnection();
+        PartialDownload part = new PartialDownload(file, infoFile, size);
+        try (ReadableByteChannel src = Channels.newChannel(h.getInputStream())) {
+            assertTrue(part.open(0, VALIDATOR));
+            while (part.receive(src, Downloader.TRANSFER_BYTES) > 0)
+                continue;
+        }
+        finally {
+            part.close();
+        }
+        return part.have();
+    }
+
+    // The best of `runs`, in ns
+    private long best(int runs, URL url, long size, boolean channel) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; ++i) {
+            Track.deleteFile(file);
+            long start = System.nanoTime();
+            long n = channel ? receive(url, size) : copyLoop(url);
+            best = Math.min(best, System.nanoTime() - start);
+            assertEquals(size, n);
+            assertEquals(size, file.length());
+        }
+        return best;
+    }
+
+    private void benchmark(long size, int runs) throws IOException {
+        HttpServer server = serve(size);
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            long oldNs = best(runs, url, size, false);
+            long newNs = best(runs, url, size, true);
+            double mb = size / (1024.0 * 1024.0);
+            /* The FileChannel path also syncs what it records in .partinfo,
+               which the copy loop never did, so allow it some slack */
+            assertTrue(String.format(Locale.US,
+                    "%.0f MB: copy loop %.1f ms (%.0f MB/s), FileChannel %.1f ms (%.0f MB/s)",
+                    mb, oldNs / 1e6, mb / (oldNs / 1e9), newNs / 1e6, mb / (newNs / 1e9)),
+                    newNs < 2 * oldNs);
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    /* Writes hundreds of MB, so only with -Dpodcasts.benchmark=true.  1 GB
+       takes a while and needs the disk space, so only with
+       -Dpodcasts.benchmark.large=true as well. */
+    @Test
+    public void benchmarkDownload() throws IOException {
+        assumeTrue(Boolean.getBoolean("podcasts.benchmark"));
+        benchmark(1024 * 1024, 5);
+        benchmark(100 * 1024 * 1024, 3);
+        if (Boolean.getBoolean("podcasts.benchmark.large"))
+            benchmark(1024L * 1024 * 1024, 1);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* TrackTable reuses the slots of tracks that are gone */
+public class TrackTableTest {
+    @Test
+    public void reusesSlotsOfUnreachableTracks() throws InterruptedException {
+        List<Track> kept = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            Track t = new Track("k" + i);
+            t.setCurMs(i);
+            kept.add(t);
+        }
+        int before = TrackTable.capacity();
+        // As each Catalog.read or .tag import does, make a new Track for each track
+        for (int round = 0; round < 50; ++round) {
+            for (int i = 0; i < 2000; ++i) {
+                Track t = new Track("t" + i);
+                assertEquals(0, t.curMs());
+                t.setCurMs(1000 + i);
+            }
+            System.gc();
+            Thread.sleep(10);
+        }
+        int grew = TrackTable.capacity() - before;
+        assertTrue("grew by " + grew, grew < 10 * 2000);
+        // The live tracks kept theirs
+        for (int i = 0; i < kept.size(); ++i)
+            assertEquals(i, kept.get(i).curMs());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ This software is distributed under the "Simplified BSD license":
+
+ Copyright Michael Cook <michael@waxrat.com>. All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+    1. Redistributions of source code must retain the above copyright notice,
+       this list of conditions and the following disclaimer.
+
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY MICHAEL COOK ''AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ EVENT SHALL MICHAEL COOK OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+ The views and conclusions contained in the software and documentation are
+ those of the authors and should not be interpreted as representing official
+ policies, either expressed or implied, of Michael Cook.
+*/
+
+package com.waxrat.podcasts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/* Moving one track after a priority change (repositionTrack) against
+   re-sorting the whole list (sortTracks) */
+public class TracksRepositionTest {
+    @After
+    public void tearDown() {
+        Tracks.clearForTest();
+    }
+
+    // `n` tracks with random priorities
+    private static void fill(int n, long seed) {
+        Tracks.clearForTest();
+        Random random = new Random(seed);
+        synchronized (Tracks.class) {
+            for (int i = 0; i < n; ++i) {
+                Track t = new Track("t" + i);
+                t.priority = "B" + random.nextInt(n);
+                Tracks.insertTrack(t);
+            }
+        }
+    }
+
+    private static List<String> idents() {
+        List<String> idents = new ArrayList<>();
+        for (Track t : Tracks.tracksForTest())
+            idents.add(t.ident);
+        return idents;
+    }
+
+    // Make `numChanges` random priority changes, then return how long they took (ns)
+    private static long change(int numChanges, long seed, boolean reposition) {
+        List<Track> list = Tracks.tracksForTest();
+        int n = list.size();
+        Random random = new Random(seed);
+        long start = System.nanoTime();
+        synchronized (Tracks.class) {
+            for (int k = 0; k < numChanges; ++k) {
+                Track t = list.get(random.nextInt(n));
+                t.priority = "B" + random.nextInt(n);
+                if (reposition)
+                    Tracks.repositionTrack(t);
+                else
+                    Tracks.sortTracks();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void repositionMatchesSort() {
+        fill(2000, 1);
+        change(500, 2, true);
+        List<String> repositioned = idents();
+        fill(2000, 1);
+        change(500, 2, false);
+        assertEquals(idents(), repositioned);
+    }
+
+    private static void benchmark(int numTracks, int numChanges) {
+        fill(numTracks, 3);
+        long repositionNs = change(numChanges, 4, true);
+        fill(numTracks, 3);
+        long sortNs = change(numChanges, 4, false);
+        System.out.println(String.format(Locale.US,
+                "%d tracks, %d priority changes: reposition %d ms, full sort %d ms",
+                numTracks, numChanges, repositionNs / 1000000, sortNs / 1000000));
+    }
+
+    /* Timings vary too much from one machine (or run) to the next for the
+       unit tests, so only with -Dpodcasts.benchmark=true */
+    @Test
+    public void benchmarkReposition() {
+        assumeTrue(Boolean.getBoolean("podcasts.benchmark"));
+        benchmark(10000, 1000);
+        benchmark(100000, 100);
+    }
+}
@@ -60,6 +60,32 @@
       exit;
     }
 
+    $size = filesize($file);
+    $mtime = filemtime($file);
+    $etag = sprintf('"%x-%x"', $mtime, $size);
+    $modified = gmdate("D, d M Y H:i:s", $mtime) . " GMT";
+
+    // A single "Range: bytes=first-[last]" resumes a download, but only if
+    // the file is still the one If-Range names
+    $first = 0;
+    $last = $size - 1;
+    $partial = false;
+    if (isset($_SERVER["HTTP_RANGE"]) &&
+        preg_match('/^bytes=(\d+)-(\d*)$/', trim($_SERVER["HTTP_RANGE"]), $m)) {
+      $if = isset($_SERVER["HTTP_IF_RANGE"]) ? trim($_SERVER["HTTP_IF_RANGE"]) : false;
+      if ($if === false || $if === $etag || $if === $modified) {
+        $first = (int)$m[1];
+        if ($m[2] !== "" && (int)$m[2] < $last)
+          $last = (int)$m[2];
+        if ($first > $last) {
+          header("HTTP/1.1 416 Range Not Satisfiable");
+          header("Content-Range: bytes */$size");
+          exit;
+        }
+        $partial = true;
+      }
+    }
+
     header("Content-Description: File Transfer");
     header("Content-Type: application/octet-stream");
     header("Content-Disposition: attachment; filename=" . basename($file));
@@ -67,24 +93,52 @@
     header("Expires: 0");
     header("Cache-Control: must-revalidate");
     header("Pragma: public");
-    header("Content-Length: " . filesize($file));
-    readfile($file);
+    header("Accept-Ranges: bytes");
+    header("ETag: $etag");
+    header("Last-Modified: $modified");
+    if (!$partial) {
+      header("Content-Length: $size");
+      readfile($file);
+      exit;
+    }
+    header("HTTP/1.1 206 Partial Content");
+    header("Content-Range: bytes $first-$last/$size");
+    header("Content-Length: " . ($last - $first + 1));
+    $fh = fopen($file, "rb");
+    fseek($fh, $first);
+    for ($left = $last - $first + 1; $left > 0 && !feof($fh); $left -= strlen($buf)) {
+      $buf = fread($fh, min($left, 65536));
+      if ($buf === false || $buf === "")
+        break;
+      echo $buf;
+    }
+    fclose($fh);
     exit;
   }
 
+  // rm=ID, or rm[]=ID&rm[]=ID... to remove several.  With l=1, go on to
+  // list the tags as for a poll
   if (isset($_GET["rm"])) {
-    $id = $_GET["rm"];
+    $ids = $_GET["rm"];
+    if (!is_array($ids))
+      $ids = array($ids);
 
-    if (strstr($id, "/") !== false) {
-      trigger_error("Invalid ID '$id'");
-      exit;
+    foreach ($ids as $id) {
+      if (strstr($id, "/") !== false) {
+        trigger_error("Invalid ID '$id'");
+        exit;
+      }
+    }
+    foreach ($ids as $id) {
+      unlink($id . ".mp3");
+      unlink($id . ".tag");
     }
-    unlink($id . ".mp3");
-    unlink($id . ".tag");
 
-    header("Content-type: text/plain");
-    echo "OK\n";
-    exit;
+    if (!isset($_GET["l"])) {
+      header("Content-type: text/plain");
+      echo "OK\n";
+      exit;
+    }
   }
 
   $dh = opendir(".");